@@ -43,7 +43,6 @@ import org.osgi.framework.BundleContext;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
 import org.osgi.service.deploymentadmin.spi.DeploymentSession;
-import org.osgi.service.deploymentadmin.spi.ResourceProcessor;
 import org.osgi.service.deploymentadmin.spi.ResourceProcessorException;
 import org.osgi.service.log.LogService;
 import org.osgi.service.metatype.AttributeDefinition;
@@ -52,7 +51,10 @@ import org.osgi.service.metatype.MetaTypeService;
 import org.osgi.service.metatype.ObjectClassDefinition;
 import org.xmlpull.v1.XmlPullParserException;
 
-public class AutoConfResourceProcessor implements ResourceProcessor {
+import de.akquinet.gomobile.deploymentadmin.api.BatchingResourceProcessor;
+import de.akquinet.gomobile.deploymentadmin.api.ResourceBatch;
+
+public class AutoConfResourceProcessor implements BatchingResourceProcessor {
 
     private static final String LOCATION_PREFIX = "osgi-dp:";
 
@@ -64,6 +66,7 @@ public class AutoConfResourceProcessor implements ResourceProcessor {
     private DeploymentSession m_session = null;
     private Map m_toBeInstalled = new HashMap(); // Map<String, List<AutoConfResource>>
     private Map m_toBeDeleted = new HashMap();
+    private Map m_metaTypeInfos = null; // Map<String, MetaTypeInformation>, only set while a batch is processed
 
     private PersistencyManager m_persistencyManager;
 
@@ -135,6 +138,44 @@ public class AutoConfResourceProcessor implements ResourceProcessor {
        }
     }
 
+    public void processAll(ResourceBatch resources) throws ResourceProcessorException {
+        // the designates of a batch usually target the same bundles, look up their meta type information once
+        m_metaTypeInfos = new HashMap();
+        try {
+            while (resources.next()) {
+                process(resources.getName(), resources.getStream());
+            }
+        }
+        catch (IOException e) {
+            throw new ResourceProcessorException(ResourceProcessorException.CODE_OTHER_ERROR, "Unable to process resource.", e);
+        }
+        finally {
+            m_metaTypeInfos = null;
+        }
+    }
+
+    public void droppedAll(List names) throws ResourceProcessorException {
+        if (m_session == null) {
+            throw new ResourceProcessorException(ResourceProcessorException.CODE_OTHER_ERROR, "Can not process resource without a Deployment Session");
+        }
+        // load everything first, the session only learns about the dropped resources if all of them could be loaded
+        Map loaded;
+        try {
+            loaded = m_persistencyManager.load(names);
+        }
+        catch (IOException ioe) {
+            throw new ResourceProcessorException(ResourceProcessorException.CODE_OTHER_ERROR, "Unable to drop resources: " + names, ioe);
+        }
+        for (Iterator i = loaded.entrySet().iterator(); i.hasNext();) {
+            Map.Entry entry = (Map.Entry) i.next();
+            String name = (String) entry.getKey();
+            if (!m_toBeDeleted.containsKey(name)) {
+                m_toBeDeleted.put(name, new ArrayList());
+            }
+            ((List) m_toBeDeleted.get(name)).addAll((List) entry.getValue());
+        }
+    }
+
     public void dropped(String name) throws ResourceProcessorException {
         if (m_session == null) {
             throw new ResourceProcessorException(ResourceProcessorException.CODE_OTHER_ERROR, "Can not process resource without a Deployment Session");
@@ -376,26 +417,39 @@ public class AutoConfResourceProcessor implements ResourceProcessor {
     private ObjectClassDefinition getMetaTypeOCD(MetaData data, Designate designate) throws ResourceProcessorException {
         ObjectClassDefinition ocd = null;
         String ocdRef = designate.getObject().getOcdRef();
-        Bundle bundle = getBundle(designate.getBundleLocation(), isFactoryConfig(designate));
-        if (bundle != null) {
-            MetaTypeInformation mti = m_metatypeService.getMetaTypeInformation(bundle);
-            if (mti != null) {
-                String pid = isFactoryConfig(designate) ? pid = designate.getFactoryPid() : designate.getPid();
-                try {
-                    ObjectClassDefinition tempOcd = mti.getObjectClassDefinition(pid, null);
-                    // tempOcd will always have a value, if pid was not known IAE will be thrown
-                    if (ocdRef.equals(tempOcd.getID())) {
-                        ocd = tempOcd;
-                    }
-                }
-                catch (IllegalArgumentException iae) {
-                    // let null be returned
+        MetaTypeInformation mti = getMetaTypeInformation(designate.getBundleLocation(), isFactoryConfig(designate));
+        if (mti != null) {
+            String pid = isFactoryConfig(designate) ? pid = designate.getFactoryPid() : designate.getPid();
+            try {
+                ObjectClassDefinition tempOcd = mti.getObjectClassDefinition(pid, null);
+                // tempOcd will always have a value, if pid was not known IAE will be thrown
+                if (ocdRef.equals(tempOcd.getID())) {
+                    ocd = tempOcd;
                 }
             }
+            catch (IllegalArgumentException iae) {
+                // let null be returned
+            }
         }
         return ocd;
     }
 
+    private MetaTypeInformation getMetaTypeInformation(String bundleLocation, boolean isFactory) throws ResourceProcessorException {
+        String key = (isFactory ? "factory:" : "singleton:") + bundleLocation;
+        if (m_metaTypeInfos != null && m_metaTypeInfos.containsKey(key)) {
+            return (MetaTypeInformation) m_metaTypeInfos.get(key);
+        }
+        MetaTypeInformation mti = null;
+        Bundle bundle = getBundle(bundleLocation, isFactory);
+        if (bundle != null) {
+            mti = m_metatypeService.getMetaTypeInformation(bundle);
+        }
+        if (m_metaTypeInfos != null) {
+            m_metaTypeInfos.put(key, mti);
+        }
+        return mti;
+    }
+
     private boolean isFactoryConfig(Designate designate) {
         String factoryPid = designate.getFactoryPid();
         return (factoryPid != null || !"".equals(factoryPid));
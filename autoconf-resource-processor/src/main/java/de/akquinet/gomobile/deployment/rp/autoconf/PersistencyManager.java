@@ -27,6 +27,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -128,6 +129,25 @@ public class PersistencyManager {
 		return resources;
 	}
 	
+	/**
+	 * Loads several stored resources. Every resource is still read from its own file, the difference to loading them
+	 * one by one is that either all of them are returned or none.
+	 * 
+	 * @param names List containing the names of the resources.
+	 * @return A map from every name to the list of <code>AutoConfResource</code>s representing that resource, unknown resources are mapped to an empty list.
+	 * @throws IOException If one of the resources could not be properly read.
+	 */
+	public Map load(List names) throws IOException {
+		Map resources = new HashMap();
+		for (Iterator i = names.iterator(); i.hasNext();) {
+			String name = (String) i.next();
+			if (!resources.containsKey(name)) {
+				resources.put(name, load(name));
+			}
+		}
+		return resources;
+	}
+
 	/**
 	 * Loads all stored resources.
 	 * 
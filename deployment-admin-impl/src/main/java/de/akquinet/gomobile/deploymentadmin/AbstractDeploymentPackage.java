@@ -12,13 +12,11 @@ import java.util.jar.Manifest;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
-import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.Version;
 import org.osgi.service.deploymentadmin.BundleInfo;
 import org.osgi.service.deploymentadmin.DeploymentException;
 import org.osgi.service.deploymentadmin.DeploymentPackage;
-import org.osgi.service.deploymentadmin.spi.ResourceProcessor;
 
 /**
  * Base class for various types of deployment packages. Indifferent in regard to how the
@@ -45,6 +43,7 @@ public abstract class AbstractDeploymentPackage implements DeploymentPackage {
         public Bundle getBundle(String symbolicName) { return null; }
         public BundleInfo[] getBundleInfos() { return new BundleInfoImpl[] {}; }
         public BundleInfoImpl[] getBundleInfoImpls() { return new BundleInfoImpl[] {}; }
+        public ResourceInfoImpl[] getResourceInfos() { return new ResourceInfoImpl[] {}; }
         public String getName() { return ""; }
         public String getResourceHeader(String resource, String header) { return null; }
         public ServiceReference getResourceProcessor(String resource) { return null; }
@@ -98,19 +97,19 @@ public abstract class AbstractDeploymentPackage implements DeploymentPackage {
         m_resourcePaths = (String[]) m_pathToEntry.keySet().toArray(new String[m_pathToEntry.size()]);
     }
 
+    /**
+     * @return The manifest of this deployment package.
+     */
+    protected Manifest getManifest() {
+        return m_manifest.getManifest();
+    }
+
     public Bundle getBundle(String symbolicName) {
         if (isStale()) {
             throw new IllegalStateException("Can not get bundle from stale deployment package.");
         }
         if (m_nameToBundleInfo.containsKey(symbolicName)) {
-            Bundle[] bundles = m_bundleContext.getBundles();
-            for (int i = 0; i < bundles.length; i++) {
-                String sn = bundles[i].getSymbolicName();
-                // OSGi R3 bundles do not have a symbolic name.
-                if (sn != null && sn.equals(symbolicName)) {
-                        return bundles[i];
-                }
-            }
+            return m_admin.getBundleIndex().getBundle(symbolicName);
         }
         return null;
     }
@@ -221,18 +220,7 @@ public abstract class AbstractDeploymentPackage implements DeploymentPackage {
         }
         String processor = getResourceProcessorName(resource);
         if (processor != null) {
-            try {
-                ServiceReference[] services = m_bundleContext.getServiceReferences(ResourceProcessor.class.getName(), "(" + org.osgi.framework.Constants.SERVICE_PID + "=" + processor + ")");
-            if (services != null && services.length > 0) {
-                return services[0];
-            }
-            else {
-                return null;
-            }
-
-        }catch (InvalidSyntaxException e) {
-            return null;
-            }
+            return m_admin.getResourceProcessors().getReference(processor);
         }
         return null;
     }
@@ -360,6 +348,18 @@ public abstract class AbstractDeploymentPackage implements DeploymentPackage {
         return (BundleInfoImpl) m_nameToBundleInfo.get(symbolicName);
     }
 
+    /**
+     * Determines the digest of the content of a bundle resource based on the bundle symbolic name. The default
+     * implementation returns the digest declared in the manifest of the deployment package.
+     *
+     * @param symbolicName Bundle symbolic name
+     * @return The SHA-256 digest of the bundle as lower case hexadecimal string or null if it is not known
+     */
+    public String getBundleDigest(String symbolicName) {
+        BundleInfoImpl bundleInfo = getBundleInfoByName(symbolicName);
+        return (bundleInfo == null) ? null : bundleInfo.getDigest();
+    }
+
     /**
      * Determines the data stream of a bundle resource based on the bundle symbolic name
      *
@@ -384,5 +384,14 @@ public abstract class AbstractDeploymentPackage implements DeploymentPackage {
      */
     public abstract InputStream getCurrentEntryStream();
 
+    /**
+     * Reads the remainder of this deployment package once all entries that are needed were read. Packages that are not
+     * read from a stream have nothing to do.
+     *
+     * @throws IOException If the remainder could not be read or the package could not be stored completely.
+     */
+    public void finish() throws IOException {
+    }
+
 }
 
@@ -36,6 +36,7 @@ public class AbstractInfo {
     private final String m_path;
     private final Attributes m_attributes;
     private final boolean m_missing;
+    private final String m_digest;
 
     /**
      * Create an instance
@@ -49,6 +50,7 @@ public class AbstractInfo {
         m_path = path;
         m_attributes = attributes;
         m_missing = parseBooleanHeader(attributes, Constants.DEPLOYMENTPACKAGE_MISSING);
+        m_digest = parseDigest(attributes.getValue(Constants.SHA256_DIGEST));
     }
 
     /**
@@ -94,6 +96,63 @@ public class AbstractInfo {
         return m_missing;
     }
 
+    /**
+     * Determine the digest of the resource as declared in the manifest (by signing the deployment package).
+     * @return The SHA-256 digest as lower case hexadecimal string or null if the manifest does not declare a (valid) SHA-256 digest
+     */
+    public String getDigest() {
+        return m_digest;
+    }
+
+    /**
+     * Converts a base64 encoded digest as used by signed jars to the hexadecimal form used by the package store.
+     *
+     * @param value The value of the digest header, may be null
+     * @return The digest in hexadecimal form or null if the value is not a valid base64 encoded SHA-256 digest
+     */
+    private static String parseDigest(String value) {
+        if (value == null) {
+            return null;
+        }
+        value = value.trim();
+        if (value.length() != 44) {
+            return null;
+        }
+        byte[] digest = new byte[32];
+        int bits = 0;
+        int count = 0;
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            int v;
+            if (c >= 'A' && c <= 'Z') {
+                v = c - 'A';
+            } else if (c >= 'a' && c <= 'z') {
+                v = c - 'a' + 26;
+            } else if (c >= '0' && c <= '9') {
+                v = c - '0' + 52;
+            } else if (c == '+') {
+                v = 62;
+            } else if (c == '/') {
+                v = 63;
+            } else if (c == '=') {
+                break;
+            } else {
+                return null;
+            }
+            bits = (bits << 6) | v;
+            count += 6;
+            if (count >= 8) {
+                count -= 8;
+                if (length == digest.length) {
+                    return null;
+                }
+                digest[length++] = (byte) (bits >> count);
+            }
+        }
+        return (length == digest.length) ? BlobStore.toHex(digest) : null;
+    }
+
     /**
      * Parses a header that is allowed to have only boolean values.
      *
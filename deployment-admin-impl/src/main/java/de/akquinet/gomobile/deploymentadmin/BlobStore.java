@@ -0,0 +1,315 @@
+package de.akquinet.gomobile.deploymentadmin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Content addressed store holding the entries of all deployment packages. Every entry is stored once under
+ * the SHA-256 digest of its (decoded) content, package indices only refer to it through the
+ * <code>PackageIndex.SHA256</code> attribute. The store counts how many index entries refer to each blob and
+ * deletes a blob as soon as it is no longer referenced.
+ * <p>
+ * Reference counts are not persisted, the package indices are the authoritative source. They are rebuilt
+ * when the deployment admin starts, blobs that are not referenced by any package at that time are left over
+ * from an interrupted installation and get deleted.
+ */
+public class BlobStore {
+
+    private static final String TEMP_DIR = "tmp";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File m_root;
+    private final File m_tempDir;
+    private final Map/*String -> Blob*/ m_blobs = new HashMap();
+
+    /**
+     * Creates an instance of this class.
+     *
+     * @param root The directory holding the blobs.
+     */
+    public BlobStore(File root) {
+        m_root = root;
+        m_tempDir = new File(root, TEMP_DIR);
+    }
+
+    /**
+     * Rebuilds the reference counts from the indices of all installed deployment packages and deletes all blobs
+     * that are not referenced.
+     *
+     * @param indices <code>Collection</code> containing the <code>PackageIndex</code> of every installed deployment package.
+     * @throws IOException If an index refers to an unknown codec.
+     */
+    public synchronized void rebuild(Collection indices) throws IOException {
+        m_blobs.clear();
+        for (Iterator i = indices.iterator(); i.hasNext();) {
+            PackageIndex index = (PackageIndex) i.next();
+            for (Iterator j = index.getPaths().iterator(); j.hasNext();) {
+                String path = (String) j.next();
+                String key = index.getAttribute(path, PackageIndex.SHA256);
+                if (key != null) {
+                    Blob blob = (Blob) m_blobs.get(key);
+                    if (blob == null) {
+                        blob = new Blob(key, index.getCodec(path));
+                        m_blobs.put(key, blob);
+                    }
+                    blob.m_references++;
+                }
+            }
+        }
+        delete(m_tempDir);
+        m_tempDir.mkdirs();
+        File[] dirs = m_root.listFiles();
+        for (int i = 0; i < dirs.length; i++) {
+            if (dirs[i].isDirectory() && !dirs[i].equals(m_tempDir)) {
+                File[] files = dirs[i].listFiles();
+                for (int j = 0; j < files.length; j++) {
+                    if (!m_blobs.containsKey(files[j].getName())) {
+                        files[j].delete();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a stream to which the content of a new entry can be written. Once all data is written
+     * <code>BlobOutputStream.store()</code> moves it into the store.
+     *
+     * @param codec The codec the entry should be stored with if it is not yet present.
+     * @return The stream.
+     * @throws IOException If the temporary file could not be created.
+     */
+    public BlobOutputStream create(StorageCodec codec) throws IOException {
+        m_tempDir.mkdirs();
+        return new BlobOutputStream(File.createTempFile("blob", "", m_tempDir), codec);
+    }
+
+    /**
+     * Determines the file holding a blob.
+     *
+     * @param key The SHA-256 digest of the blob.
+     * @return The file, the data in it is encoded with the codec recorded for the blob.
+     */
+    public File getFile(String key) {
+        return new File(new File(m_root, key.substring(0, 2)), key);
+    }
+
+    /**
+     * Adds a reference for every entry of the specified index.
+     *
+     * @param index The index referring to the blobs.
+     */
+    public synchronized void retain(PackageIndex index) {
+        for (Iterator i = index.getPaths().iterator(); i.hasNext();) {
+            String key = index.getAttribute((String) i.next(), PackageIndex.SHA256);
+            if (key != null) {
+                Blob blob = (Blob) m_blobs.get(key);
+                if (blob != null) {
+                    blob.m_references++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a reference for every entry of the specified index, blobs that are no longer referenced are deleted.
+     *
+     * @param index The index referring to the blobs.
+     */
+    public synchronized void release(PackageIndex index) {
+        for (Iterator i = index.getPaths().iterator(); i.hasNext();) {
+            String key = index.getAttribute((String) i.next(), PackageIndex.SHA256);
+            if (key != null) {
+                release(key);
+            }
+        }
+    }
+
+    /**
+     * Removes a single reference to a blob, the blob is deleted if it is no longer referenced.
+     *
+     * @param key The SHA-256 digest of the blob.
+     */
+    public synchronized void release(String key) {
+        Blob blob = (Blob) m_blobs.get(key);
+        if (blob != null && --blob.m_references <= 0) {
+            m_blobs.remove(key);
+            getFile(key).delete();
+        }
+    }
+
+    private synchronized Blob store(File temp, String key, StorageCodec codec) throws IOException {
+        Blob blob = (Blob) m_blobs.get(key);
+        if (blob != null) {
+            // identical content is already present
+            temp.delete();
+        }
+        else {
+            File file = getFile(key);
+            file.getParentFile().mkdirs();
+            file.delete();
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Could not move blob to " + file.getAbsolutePath());
+            }
+            blob = new Blob(key, codec);
+            m_blobs.put(key, blob);
+        }
+        blob.m_references++;
+        return blob;
+    }
+
+    private static void delete(File root) {
+        if (root.isDirectory()) {
+            File[] childs = root.listFiles();
+            for (int i = 0; i < childs.length; i++) {
+                delete(childs[i]);
+            }
+        }
+        root.delete();
+    }
+
+    /**
+     * Calculates the digest under which the content of a stream would be stored.
+     *
+     * @param input The stream, it is closed when all data is read.
+     * @return The SHA-256 digest as lower case hexadecimal string.
+     * @throws IOException If the stream could not be read.
+     */
+    public static String digest(InputStream input) throws IOException {
+        try {
+            MessageDigest digest = newDigest();
+            byte[] buffer = new byte[8192];
+            for (int i = input.read(buffer); i != -1; i = input.read(buffer)) {
+                digest.update(buffer, 0, i);
+            }
+            return toHex(digest.digest());
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @return A new instance of the digest algorithm used to key the store.
+     * @throws IOException If the algorithm is not supported by the platform.
+     */
+    public static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not supported: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Converts a digest to its hexadecimal representation.
+     *
+     * @param digest The digest.
+     * @return The digest as lower case hexadecimal string.
+     */
+    public static String toHex(byte[] digest) {
+        char[] result = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            result[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+            result[i * 2 + 1] = HEX[digest[i] & 0xf];
+        }
+        return new String(result);
+    }
+
+    /**
+     * A blob in the store.
+     */
+    public static final class Blob {
+
+        private final String m_key;
+        private final StorageCodec m_codec;
+        private int m_references;
+
+        private Blob(String key, StorageCodec codec) {
+            m_key = key;
+            m_codec = codec;
+        }
+
+        /**
+         * @return The SHA-256 digest of the content of the blob.
+         */
+        public String getKey() {
+            return m_key;
+        }
+
+        /**
+         * @return The codec the blob is stored with.
+         */
+        public StorageCodec getCodec() {
+            return m_codec;
+        }
+    }
+
+    /**
+     * Stream that writes a new entry to a temporary file while calculating its digest. The entry is added to the
+     * store by calling <code>store()</code>, closing the stream without storing it discards the data. An entry that
+     * is stored counts as one reference to its blob.
+     */
+    public final class BlobOutputStream extends OutputStream {
+
+        private final File m_temp;
+        private final StorageCodec m_codec;
+        private final MessageDigest m_digest;
+        private final OutputStream m_output;
+        private boolean m_closed;
+
+        private BlobOutputStream(File temp, StorageCodec codec) throws IOException {
+            m_temp = temp;
+            m_codec = codec;
+            m_digest = newDigest();
+            m_output = codec.encode(new FileOutputStream(temp));
+        }
+
+        public void write(int b) throws IOException {
+            m_digest.update((byte) b);
+            m_output.write(b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            m_digest.update(b, off, len);
+            m_output.write(b, off, len);
+        }
+
+        /**
+         * Adds the written data to the store.
+         *
+         * @return The blob holding the data.
+         * @throws IOException If the data could not be stored.
+         */
+        public Blob store() throws IOException {
+            closeOutput();
+            return BlobStore.this.store(m_temp, toHex(m_digest.digest()), m_codec);
+        }
+
+        public void close() throws IOException {
+            if (!m_closed) {
+                closeOutput();
+                m_temp.delete();
+            }
+        }
+
+        private void closeOutput() throws IOException {
+            if (m_closed) {
+                throw new IOException("Stream is closed");
+            }
+            m_closed = true;
+            m_output.close();
+        }
+    }
+}
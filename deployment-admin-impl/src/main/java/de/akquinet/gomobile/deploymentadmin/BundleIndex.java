@@ -0,0 +1,135 @@
+package de.akquinet.gomobile.deploymentadmin;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * Index of the installed bundles by symbolic name. It is kept up to date by a synchronous bundle listener, so a bundle
+ * is found as soon as it is installed and no longer found as soon as it is uninstalled. If several bundles share a
+ * symbolic name the one with the lowest bundle id is found, like when the bundles of the framework are searched in
+ * order.
+ */
+public class BundleIndex implements SynchronousBundleListener {
+
+    private final BundleContext m_context;
+    private final Map/*String -> Bundle[]*/ m_bundles = new ConcurrentHashMap();
+    private final Map/*Long -> String*/ m_names = new ConcurrentHashMap();
+
+    /**
+     * Creates an instance of this class.
+     *
+     * @param context The bundle context used to find the installed bundles.
+     */
+    public BundleIndex(BundleContext context) {
+        m_context = context;
+    }
+
+    /**
+     * Starts listening for bundle events and indexes the installed bundles.
+     */
+    public void open() {
+        // listen first, bundles installed meanwhile are added twice which has no effect
+        m_context.addBundleListener(this);
+        Bundle[] bundles = m_context.getBundles();
+        for (int i = 0; i < bundles.length; i++) {
+            add(bundles[i]);
+        }
+    }
+
+    /**
+     * Stops listening for bundle events and clears the index.
+     */
+    public void close() {
+        m_context.removeBundleListener(this);
+        synchronized (this) {
+            m_bundles.clear();
+            m_names.clear();
+        }
+    }
+
+    /**
+     * Determines the installed bundle with a symbolic name.
+     *
+     * @param symbolicName The symbolic name.
+     * @return The bundle or <code>null</code> if no bundle with the symbolic name is installed.
+     */
+    public Bundle getBundle(String symbolicName) {
+        Bundle[] bundles = (Bundle[]) m_bundles.get(symbolicName);
+        return (bundles == null) ? null : bundles[0];
+    }
+
+    public void bundleChanged(BundleEvent event) {
+        switch (event.getType()) {
+            case BundleEvent.INSTALLED:
+                add(event.getBundle());
+                break;
+            case BundleEvent.UPDATED:
+                // the symbolic name may have changed
+                remove(event.getBundle());
+                add(event.getBundle());
+                break;
+            case BundleEvent.UNINSTALLED:
+                remove(event.getBundle());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private synchronized void add(Bundle bundle) {
+        String symbolicName = bundle.getSymbolicName();
+        Long id = new Long(bundle.getBundleId());
+        // OSGi R3 bundles do not have a symbolic name.
+        if (symbolicName == null || m_names.containsKey(id)) {
+            return;
+        }
+        Bundle[] bundles = (Bundle[]) m_bundles.get(symbolicName);
+        if (bundles == null) {
+            m_bundles.put(symbolicName, new Bundle[] {bundle});
+        }
+        else {
+            // keep the bundles ordered by id, the array is replaced so readers never see it change
+            Bundle[] result = new Bundle[bundles.length + 1];
+            int j = 0;
+            for (int i = 0; i < bundles.length; i++) {
+                if (j == i && bundles[i].getBundleId() > bundle.getBundleId()) {
+                    result[j++] = bundle;
+                }
+                result[j++] = bundles[i];
+            }
+            if (j == bundles.length) {
+                result[j] = bundle;
+            }
+            m_bundles.put(symbolicName, result);
+        }
+        m_names.put(id, symbolicName);
+    }
+
+    private synchronized void remove(Bundle bundle) {
+        String symbolicName = (String) m_names.remove(new Long(bundle.getBundleId()));
+        if (symbolicName == null) {
+            return;
+        }
+        Bundle[] bundles = (Bundle[]) m_bundles.get(symbolicName);
+        if (bundles == null) {
+            return;
+        }
+        if (bundles.length == 1) {
+            m_bundles.remove(symbolicName);
+            return;
+        }
+        Bundle[] result = new Bundle[bundles.length - 1];
+        int j = 0;
+        for (int i = 0; i < bundles.length; i++) {
+            if (bundles[i].getBundleId() != bundle.getBundleId() && j < result.length) {
+                result[j++] = bundles[i];
+            }
+        }
+        m_bundles.put(symbolicName, result);
+    }
+}
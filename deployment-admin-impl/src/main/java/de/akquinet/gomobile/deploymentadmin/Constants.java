@@ -11,11 +11,13 @@ public interface Constants extends org.osgi.framework.Constants {
     public static final String RESOURCE_PROCESSOR = "Resource-Processor";
     public static final String DEPLOYMENTPACKAGE_MISSING = "DeploymentPackage-Missing";
     public static final String DEPLOYMENTPACKAGE_CUSTOMIZER = "DeploymentPackage-Customizer";
+    public static final String SHA256_DIGEST = "SHA-256-Digest";
 
     // event topics and properties
     public static final String EVENTTOPIC_INSTALL = "org/osgi/service/deployment/INSTALL";
     public static final String EVENTTOPIC_UNINSTALL = "org/osgi/service/deployment/UNINSTALL";
     public static final String EVENTTOPIC_COMPLETE = "org/osgi/service/deployment/COMPLETE";
+    public static final String EVENTTOPIC_NOOP = "de/akquinet/gomobile/deploymentadmin/NOOP";
     public static final String EVENTPROPERTY_DEPLOYMENTPACKAGE_NAME = "deploymentpackage.name";
     public static final String EVENTPROPERTY_SUCCESSFUL = "successful";
 
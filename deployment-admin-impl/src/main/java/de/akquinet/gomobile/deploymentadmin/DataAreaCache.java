@@ -0,0 +1,127 @@
+package de.akquinet.gomobile.deploymentadmin;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * Cache of the base directories of the persistent storage areas of bundles. The storage area of a bundle can only be
+ * retrieved through its bundle context, which OSGi R4.0 bundles do not expose, so the context is obtained by
+ * reflection. Frameworks implementing R4.1 or later declare <code>getBundleContext()</code> on the
+ * <code>Bundle</code> interface and it is called through that method, otherwise the method found on each bundle class
+ * is remembered. Resolved directories are kept by bundle id until the bundle is updated or uninstalled.
+ */
+public class DataAreaCache implements SynchronousBundleListener {
+
+    private static final String GET_BUNDLE_CONTEXT = "getBundleContext";
+
+    private final BundleContext m_context;
+    private final Method m_interfaceMethod;
+    private final Map/*Class -> Method*/ m_methods = new ConcurrentHashMap();
+    private final Map/*Long -> File*/ m_dataFiles = new ConcurrentHashMap();
+
+    /**
+     * Creates an instance of this class.
+     *
+     * @param context The bundle context used to listen for bundle events.
+     */
+    public DataAreaCache(BundleContext context) {
+        m_context = context;
+        Method method = null;
+        try {
+            method = Bundle.class.getMethod(GET_BUNDLE_CONTEXT, null);
+        }
+        catch (NoSuchMethodException e) {
+            // OSGi R4.0 framework, the method is looked up on every bundle class
+        }
+        m_interfaceMethod = method;
+    }
+
+    /**
+     * Starts listening for bundle events.
+     */
+    public void open() {
+        m_context.addBundleListener(this);
+    }
+
+    /**
+     * Stops listening for bundle events and clears the cache.
+     */
+    public void close() {
+        m_context.removeBundleListener(this);
+        m_dataFiles.clear();
+        m_methods.clear();
+    }
+
+    /**
+     * Retrieve the base directory of the persistent storage area according to
+     * OSGi Core R4 6.1.6.10 for the given <code>Bundle</code>.
+     *
+     * @param bundle of which the storage area will be returned
+     * @return a <code>File</code> that represents the base directory of the
+     *     persistent storage area for the bundle
+     */
+    public File getDataFile(Bundle bundle) {
+        Long id = new Long(bundle.getBundleId());
+        File result = (File) m_dataFiles.get(id);
+        if (result != null) {
+            return result;
+        }
+        BundleContext context = null;
+        try {
+            context = (BundleContext) getMethod(bundle.getClass()).invoke(bundle, null);
+        }
+        catch (Exception e) {
+            // we will throw an exception indicating that below
+        }
+        if (context == null) {
+            throw new IllegalStateException("Could not retrieve valid bundle context from bundle " + bundle.getSymbolicName());
+        }
+        result = context.getDataFile("");
+        if (result == null) {
+            throw new IllegalStateException("Could not retrieve base directory for bundle " + bundle.getSymbolicName());
+        }
+        // an event removing the entry may have been missed if the bundle is gone by now
+        if (bundle.getState() != Bundle.UNINSTALLED) {
+            m_dataFiles.put(id, result);
+        }
+        return result;
+    }
+
+    public void bundleChanged(BundleEvent event) {
+        switch (event.getType()) {
+            case BundleEvent.UPDATED:
+            case BundleEvent.UNINSTALLED:
+                m_dataFiles.remove(new Long(event.getBundle().getBundleId()));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private Method getMethod(Class bundleClass) throws NoSuchMethodException {
+        if (m_interfaceMethod != null) {
+            return m_interfaceMethod;
+        }
+        Method method = (Method) m_methods.get(bundleClass);
+        if (method == null) {
+            try {
+                // try to find the method in the current class
+                method = bundleClass.getDeclaredMethod(GET_BUNDLE_CONTEXT, null);
+            }
+            catch (NoSuchMethodException e) {
+                // try to find the method in superclasses
+                method = bundleClass.getMethod(GET_BUNDLE_CONTEXT, null);
+            }
+            method.setAccessible(true);
+            m_methods.put(bundleClass, method);
+        }
+        return method;
+    }
+}
@@ -5,13 +5,22 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.jar.JarInputStream;
 
 import org.osgi.framework.Bundle;
@@ -26,12 +35,16 @@ import org.osgi.service.event.EventAdmin;
 import org.osgi.service.log.LogService;
 import org.osgi.service.packageadmin.PackageAdmin;
 
+import de.akquinet.gomobile.deploymentadmin.api.StagedDeploymentPackage;
+import de.akquinet.gomobile.deploymentadmin.api.StagingDeploymentAdmin;
 import de.akquinet.gomobile.deploymentadmin.spi.CommitResourceCommand;
 import de.akquinet.gomobile.deploymentadmin.spi.DeploymentSessionImpl;
 import de.akquinet.gomobile.deploymentadmin.spi.DropAllResourcesCommand;
 import de.akquinet.gomobile.deploymentadmin.spi.DropBundleCommand;
 import de.akquinet.gomobile.deploymentadmin.spi.DropResourceCommand;
+import de.akquinet.gomobile.deploymentadmin.spi.FinishSourceCommand;
 import de.akquinet.gomobile.deploymentadmin.spi.GetStorageAreaCommand;
+import de.akquinet.gomobile.deploymentadmin.spi.PrefetchResourceProcessorsCommand;
 import de.akquinet.gomobile.deploymentadmin.spi.ProcessResourceCommand;
 import de.akquinet.gomobile.deploymentadmin.spi.SnapshotCommand;
 import de.akquinet.gomobile.deploymentadmin.spi.StartBundleCommand;
@@ -40,19 +53,42 @@ import de.akquinet.gomobile.deploymentadmin.spi.StopBundleCommand;
 import de.akquinet.gomobile.deploymentadmin.spi.UninstallBundleCommand;
 import de.akquinet.gomobile.deploymentadmin.spi.UpdateCommand;
 
-public class DeploymentAdminImpl implements DeploymentAdmin {
+public class DeploymentAdminImpl implements DeploymentAdmin, StagingDeploymentAdmin {
 
     public static final String PACKAGE_DIR = "packages";
     public static final String TEMP_DIR = "temp";
+    public static final String STAGED_DIR = "staged";
     public static final String PACKAGECONTENTS_DIR = "contents";
     public static final String PACKAGEINDEX_FILE = "index.txt";
+    public static final String BLOB_DIR = "blobs";
+    public static final String TRASH_DIR = "trash";
+    public static final String SNAPSHOT_DIR = "snapshots";
+    public static final String REGISTRY_FILE = "registry.bin";
+    public static final String OWNERSHIP_FILE = "ownership.txt";
     public static final String TEMP_PREFIX = "pkg";
     public static final String TEMP_POSTFIX = "";
 
     public static final String SHARED_OWNERSHIP_PROP = "de.akquinet.gomobile.deployment.sharedOwnership";
     public static final String STOP_UNAFFECTED_BUNDLE_PROP = "de.akquinet.gomobile.deploymentadmin.stopunaffectedbundle";
-
-    private static final long TIMEOUT = 10000;
+    public static final String TIMEOUT_PROP = "de.akquinet.gomobile.deploymentadmin.timeout";
+    public static final String STORAGE_PROP = "de.akquinet.gomobile.deploymentadmin.storage";
+    public static final String STORAGE_LEVEL_PROP = "de.akquinet.gomobile.deploymentadmin.storage.level";
+    public static final String PIPE_SIZE_PROP = "de.akquinet.gomobile.deploymentadmin.pipe.size";
+    public static final String PARALLEL_START_PROP = "de.akquinet.gomobile.deploymentadmin.parallelstart";
+    public static final String WORKERS_PROP = "de.akquinet.gomobile.deploymentadmin.workers";
+    public static final String PARALLEL_STOP_PROP = "de.akquinet.gomobile.deploymentadmin.parallelstop";
+    public static final String STOP_TIMEOUT_PROP = "de.akquinet.gomobile.deploymentadmin.stoptimeout";
+    public static final String PARALLEL_PROCESS_PROP = "de.akquinet.gomobile.deploymentadmin.parallelprocess";
+    public static final String SPOOL_SIZE_PROP = "de.akquinet.gomobile.deploymentadmin.spool.size";
+    public static final String PARALLEL_COMMIT_PROP = "de.akquinet.gomobile.deploymentadmin.parallelcommit";
+    public static final String COMMIT_TIMEOUT_PROP = "de.akquinet.gomobile.deploymentadmin.committimeout";
+    public static final String KEEP_SNAPSHOTS_PROP = "de.akquinet.gomobile.deploymentadmin.keepsnapshots";
+
+    private static final long DEFAULT_TIMEOUT = 10000;
+    private static final int DEFAULT_PIPE_SIZE = 64 * 1024;
+    private static final long DEFAULT_STOP_TIMEOUT = 30000;
+    private static final int DEFAULT_SPOOL_SIZE = 64 * 1024;
+    private static final long DEFAULT_COMMIT_TIMEOUT = 30000;
 
     private BundleContext m_context;
 
@@ -60,16 +96,42 @@ public class DeploymentAdminImpl implements DeploymentAdmin {
     private LogService m_logService;
     private EventAdmin m_eventAdmin;
 
-    private DeploymentSessionImpl m_session = null;
-    private final Map m_packages = new HashMap();
-    private final List m_installCommands = new ArrayList();
-    private final List m_uninstallCommands = new ArrayList();
+    private final Set m_sessions = Collections.synchronizedSet(new HashSet());
+    private final Map/*String -> FileDeploymentPackage or PackageRegistry.Entry*/ m_packages = Collections.synchronizedMap(new HashMap());
+    private final Map/*String -> StagedFileDeploymentPackage*/ m_staged = Collections.synchronizedMap(new HashMap());
 
     private final boolean m_sharedOwnership; // Enabled by default.
 
-    private final Semaphore m_semaphore = new Semaphore();
-
-    private final Map/*Bundle -> List<DeploymentPackage>*/ m_bundleToPackage = new HashMap();
+    private final long m_timeout;
+    private final StoragePolicy m_storagePolicy;
+    private final BlobStore m_blobStore;
+    private final Janitor m_janitor;
+    private final PackageRegistry m_registry;
+    private final int m_pipeSize;
+    private volatile ExecutorService m_executor;
+    private volatile ExecutorService m_workExecutor;
+    private final boolean m_parallelStart;
+    private final boolean m_parallelStop;
+    private final long m_stopTimeout;
+    private final boolean m_stopUnaffectedBundles;
+    private final boolean m_parallelProcess;
+    private final int m_spoolSize;
+    private final boolean m_parallelCommit;
+    private final long m_commitTimeout;
+    private final boolean m_keepSnapshots;
+    private final int m_workers;
+    private final PackageLockManager m_lockManager = new PackageLockManager();
+    private final Object m_refreshLock = new Object();
+    // installations and uninstallations hold the read lock, stopping takes the write lock to wait for them
+    private final ReadWriteLock m_operationLock = new ReentrantReadWriteLock();
+    private volatile boolean m_stopped;
+
+    private final OwnershipIndex m_ownership;
+    private final Map/*String -> Set<String>*/ m_bundlePackages = new HashMap();
+    private boolean m_indexed;
+    private final BundleIndex m_bundleIndex;
+    private final ResourceProcessorTracker m_resourceProcessors;
+    private final DataAreaCache m_dataAreas;
 
     /**
      * Create new instance of this <code>DeploymentAdmin</code>.
@@ -79,19 +141,6 @@ public class DeploymentAdminImpl implements DeploymentAdmin {
 
         m_context = bc;
 
-        GetStorageAreaCommand getStorageAreaCommand = new GetStorageAreaCommand();
-        m_installCommands.add(getStorageAreaCommand);
-        m_installCommands.add(new StopBundleCommand());
-        m_installCommands.add(new SnapshotCommand(getStorageAreaCommand));
-        m_installCommands.add(new UpdateCommand());
-        m_installCommands.add(new StartCustomizerCommand());
-        CommitResourceCommand commitCommand = new CommitResourceCommand();
-        m_installCommands.add(new ProcessResourceCommand(commitCommand));
-        m_installCommands.add(new DropResourceCommand(commitCommand));
-        m_installCommands.add(new DropBundleCommand());
-        m_installCommands.add(commitCommand);
-        m_installCommands.add(new StartBundleCommand());
-
         // Is shared ownership set
         String k = bc.getProperty(SHARED_OWNERSHIP_PROP);
         // If not set - disable
@@ -101,23 +150,157 @@ public class DeploymentAdminImpl implements DeploymentAdmin {
             m_sharedOwnership = true;
         }
 
+        // Time to wait for the lock of a deployment package
+        m_timeout = getLongProperty(bc, TIMEOUT_PROP, DEFAULT_TIMEOUT);
+
+        // How the contents of deployment packages are stored
+        int level = (int) getLongProperty(bc, STORAGE_LEVEL_PROP, -1);
+        m_storagePolicy = new StoragePolicy(bc.getProperty(STORAGE_PROP), level);
+        m_blobStore = new BlobStore(bc.getDataFile(BLOB_DIR));
+        m_janitor = new Janitor(bc.getDataFile(TRASH_DIR));
+        m_registry = new PackageRegistry(bc.getDataFile(REGISTRY_FILE));
+        m_ownership = new OwnershipIndex(bc.getDataFile(OWNERSHIP_FILE));
+        m_bundleIndex = new BundleIndex(bc);
+        m_resourceProcessors = new ResourceProcessorTracker(bc);
+        m_dataAreas = new DataAreaCache(bc);
+
+        // Number of bytes buffered between a received stream and the task storing its entries
+        long pipeSize = getLongProperty(bc, PIPE_SIZE_PROP, DEFAULT_PIPE_SIZE);
+        m_pipeSize = (pipeSize > 0 && pipeSize <= Integer.MAX_VALUE) ? (int) pipeSize : DEFAULT_PIPE_SIZE;
+
+        // Concurrent work within deployment sessions, disabled unless explicitly enabled
+        m_parallelStart = "true".equalsIgnoreCase(bc.getProperty(PARALLEL_START_PROP));
+        m_parallelStop = "true".equalsIgnoreCase(bc.getProperty(PARALLEL_STOP_PROP));
+        m_stopTimeout = getLongProperty(bc, STOP_TIMEOUT_PROP, DEFAULT_STOP_TIMEOUT);
+        m_parallelProcess = "true".equalsIgnoreCase(bc.getProperty(PARALLEL_PROCESS_PROP));
+        // Resources up to this number of bytes are buffered in memory while they wait for their resource processor
+        long spoolSize = getLongProperty(bc, SPOOL_SIZE_PROP, DEFAULT_SPOOL_SIZE);
+        m_spoolSize = (spoolSize >= 0 && spoolSize <= Integer.MAX_VALUE) ? (int) spoolSize : DEFAULT_SPOOL_SIZE;
+        m_parallelCommit = "true".equalsIgnoreCase(bc.getProperty(PARALLEL_COMMIT_PROP));
+        m_commitTimeout = getLongProperty(bc, COMMIT_TIMEOUT_PROP, DEFAULT_COMMIT_TIMEOUT);
+        // Bundles unaffected by an update are stopped unless explicitly disabled
+        m_stopUnaffectedBundles = !"false".equalsIgnoreCase(bc.getProperty(STOP_UNAFFECTED_BUNDLE_PROP));
+        // Snapshots of storage areas are kept after a commit to make the next one cheap unless explicitly disabled
+        m_keepSnapshots = !"false".equalsIgnoreCase(bc.getProperty(KEEP_SNAPSHOTS_PROP));
+        long workers = getLongProperty(bc, WORKERS_PROP, 2 * Runtime.getRuntime().availableProcessors());
+        m_workers = (workers > 0 && workers <= Integer.MAX_VALUE) ? (int) workers : 1;
+    }
+
+    private static long getLongProperty(BundleContext bc, String key, long defaultValue) {
+        String value = bc.getProperty(key);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            }
+            catch (NumberFormatException e) {
+                // keep the default
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Creates the commands of an install session. Commands keep state while they are executed, concurrent
+     * sessions therefore each get their own set of commands.
+     *
+     * @return <code>List</code> containing the commands to execute for installing a deployment package.
+     */
+    private List createInstallCommands() {
+        List commands = new ArrayList();
+        GetStorageAreaCommand getStorageAreaCommand = new GetStorageAreaCommand();
+        commands.add(new PrefetchResourceProcessorsCommand());
+        commands.add(getStorageAreaCommand);
+        commands.add(new StopBundleCommand());
+        commands.add(new SnapshotCommand(getStorageAreaCommand));
+        commands.add(new UpdateCommand());
+        commands.add(new StartCustomizerCommand());
+        CommitResourceCommand commitCommand = new CommitResourceCommand();
+        commands.add(new ProcessResourceCommand(commitCommand));
+        commands.add(new DropResourceCommand(commitCommand));
+        commands.add(new DropBundleCommand());
+        commands.add(new FinishSourceCommand());
+        commands.add(commitCommand);
+        commands.add(new StartBundleCommand());
+        return commands;
+    }
+
+    /**
+     * Creates the commands of an uninstall session.
+     *
+     * @param forced enable/disable the forced mode
+     * @return <code>List</code> containing the commands to execute for uninstalling a deployment package.
+     */
+    private List createUninstallCommands(boolean forced) {
+        List commands = new ArrayList();
+        commands.add(new StopBundleCommand());
+        CommitResourceCommand commitCommand = new CommitResourceCommand();
+        commands.add(new DropAllResourcesCommand(commitCommand, forced));
+        commands.add(new DropResourceCommand(commitCommand, forced));
+        commands.add(commitCommand);
+        commands.add(new UninstallBundleCommand());
+        return commands;
     }
 
     // called automatically once dependencies are satisfied
     public void start() throws DeploymentException {
+        m_stopped = false;
+        m_executor = Executors.newCachedThreadPool(new NamedThreadFactory("DeploymentAdmin - Worker"));
+        m_workExecutor = Executors.newFixedThreadPool(m_workers, new NamedThreadFactory("DeploymentAdmin - Session Worker"));
+        m_janitor.start();
+        m_bundleIndex.open();
+        m_resourceProcessors.open();
+        m_dataAreas.open();
         File packageDir = m_context.getDataFile(PACKAGE_DIR);
         if (packageDir == null) {
             throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Could not create directories needed for deployment package persistence");
         } else {
             packageDir.mkdirs();
-            File[] packages = packageDir.listFiles();
-            for(int i = 0; i < packages.length; i++) {
+            List indices = new ArrayList();
+            List entries = m_registry.load();
+            if (entries != null) {
+                // packages are created from their registry entries once they are used
+                for (Iterator i = entries.iterator(); i.hasNext();) {
+                    PackageRegistry.Entry entry = (PackageRegistry.Entry) i.next();
+                    m_packages.put(entry.getName(), entry);
+                    indices.add(entry.getIndex());
+                }
+            }
+            else {
+                loadPackages(packageDir, indices);
+            }
+            loadStagedPackages(indices);
+            try {
+                m_blobStore.rebuild(indices);
+            }
+            catch (IOException e) {
+                m_logService.log(LogService.LOG_WARNING, "Could not rebuild the references of the package store, unreferenced entries are kept", e);
+            }
+            if (m_sharedOwnership) {
+                loadOwnership();
+            }
+            deleteOrphans();
+        }
+    }
+
+    /**
+     * Loads the installed deployment packages from their index and manifest in the package directory, this is done
+     * if the package registry can not be used.
+     *
+     * @param packageDir The package directory.
+     * @param indices <code>List</code> to which the indices of all installed packages are added.
+     * @throws DeploymentException If a package does not describe a valid deployment package.
+     */
+    private void loadPackages(File packageDir, List indices) throws DeploymentException {
+        File[] packages = packageDir.listFiles();
+        for(int i = 0; i < packages.length; i++) {
                 if (packages[i].isDirectory()) {
                     try {
-                        File index = new File(packages[i], PACKAGEINDEX_FILE);
+                        PackageIndex index = PackageIndex.read(new File(packages[i], PACKAGEINDEX_FILE));
+                        // keep the blobs of the package even if it turns out to be unusable
+                        indices.add(index);
                         File contents = new File(packages[i], PACKAGECONTENTS_DIR);
                         FileDeploymentPackage dp = new FileDeploymentPackage(index, contents, m_context, this);
-                        m_packages.put(dp.getName(), dp);
+                        putPackage(dp);
                     }
                     catch (IOException e) {
                         m_logService.log(LogService.LOG_WARNING, "Could not read deployment package from disk, skipping: '" + packages[i].getAbsolutePath() + "'");
@@ -125,104 +308,426 @@ public class DeploymentAdminImpl implements DeploymentAdmin {
                     }
                 }
             }
+    }
+
+    /**
+     * Determines an installed deployment package, a package that is only known from its registry entry is created.
+     *
+     * @param name The symbolic name of the deployment package.
+     * @return The package or <code>null</code> if it is not installed.
+     */
+    private AbstractDeploymentPackage getPackage(String name) {
+        synchronized (m_packages) {
+            Object value = m_packages.get(name);
+            if (value instanceof PackageRegistry.Entry) {
+                value = createPackage((PackageRegistry.Entry) value);
+                if (value == null) {
+                    m_packages.remove(name);
+                }
+                else {
+                    m_packages.put(name, value);
+                    indexPackage((AbstractDeploymentPackage) value);
+                }
+            }
+            return (AbstractDeploymentPackage) value;
+        }
+    }
+
+    /**
+     * Adds an installed deployment package, replacing the package with the same name.
+     *
+     * @param dp The package.
+     */
+    private void putPackage(AbstractDeploymentPackage dp) {
+        synchronized (m_packages) {
+            removePackage(dp.getName());
+            m_packages.put(dp.getName(), dp);
+            indexPackage(dp);
+        }
+    }
+
+    /**
+     * Removes an installed deployment package.
+     *
+     * @param name The symbolic name of the package.
+     */
+    private void removePackage(String name) {
+        synchronized (m_packages) {
+            Object value = m_packages.remove(name);
+            if (value instanceof AbstractDeploymentPackage) {
+                BundleInfoImpl[] infos = ((AbstractDeploymentPackage) value).getBundleInfoImpls();
+                for (int i = 0; i < infos.length; i++) {
+                    Set names = (Set) m_bundlePackages.get(infos[i].getSymbolicName());
+                    if (names != null) {
+                        names.remove(name);
+                        if (names.isEmpty()) {
+                            m_bundlePackages.remove(infos[i].getSymbolicName());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the bundles of a deployment package to the index of the packages containing each bundle.
+     *
+     * @param dp The package.
+     */
+    private void indexPackage(AbstractDeploymentPackage dp) {
+        BundleInfoImpl[] infos = dp.getBundleInfoImpls();
+        for (int i = 0; i < infos.length; i++) {
+            Set names = (Set) m_bundlePackages.get(infos[i].getSymbolicName());
+            if (names == null) {
+                names = new LinkedHashSet();
+                m_bundlePackages.put(infos[i].getSymbolicName(), names);
+            }
+            names.add(dp.getName());
+        }
+    }
+
+    /**
+     * @return <code>List</code> containing all installed deployment packages.
+     */
+    private List getPackages() {
+        synchronized (m_packages) {
+            List result = new ArrayList();
+            List names = new ArrayList(m_packages.keySet());
+            for (Iterator i = names.iterator(); i.hasNext();) {
+                AbstractDeploymentPackage dp = getPackage((String) i.next());
+                if (dp != null) {
+                    result.add(dp);
+                }
+            }
+            m_indexed = true;
+            return result;
+        }
+    }
+
+    private AbstractDeploymentPackage createPackage(PackageRegistry.Entry entry) {
+        File contents = m_context.getDataFile(PACKAGE_DIR + File.separator + entry.getName() + File.separator + PACKAGECONTENTS_DIR);
+        try {
+            try {
+                return new FileDeploymentPackage(entry.getIndex(), entry.getManifest(), contents, m_context, this);
+            }
+            catch (IOException e) {
+                m_logService.log(LogService.LOG_WARNING, "Could not read deployment package '" + entry.getName() + "' from the registry, reading it from disk", e);
+                return new FileDeploymentPackage(entry.getIndex(), contents, m_context, this);
+            }
+        }
+        catch (Exception e) {
+            m_logService.log(LogService.LOG_WARNING, "Could not read deployment package from disk, skipping: '" + contents.getParentFile().getAbsolutePath() + "'", e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the package registry, packages that were not used since the registry was loaded are written as they were read.
+     */
+    private void writeRegistry() {
+        try {
+            List entries = new ArrayList();
+            synchronized (m_packages) {
+                for (Iterator i = m_packages.values().iterator(); i.hasNext();) {
+                    Object value = i.next();
+                    if (value instanceof PackageRegistry.Entry) {
+                        entries.add(value);
+                    }
+                    else {
+                        FileDeploymentPackage dp = (FileDeploymentPackage) value;
+                        entries.add(PackageRegistry.createEntry(dp.getName(), dp.getIndex(), dp.getManifest()));
+                    }
+                }
+            }
+            m_registry.write(entries);
+        }
+        catch (IOException e) {
+            m_logService.log(LogService.LOG_WARNING, "Could not write the package registry, packages are read from disk on the next start", e);
+        }
+    }
+
+    /**
+     * Deletes what was left behind by sessions that were interrupted by a crash. No session is running yet, so
+     * everything in the temp directory is left over, as are the snapshots of bundles that are not installed.
+     */
+    private void deleteOrphans() {
+        File[] temp = m_context.getDataFile(TEMP_DIR).listFiles();
+        if (temp != null) {
+            for (int i = 0; i < temp.length; i++) {
+                m_janitor.delete(temp[i]);
+            }
+        }
+        File[] snapshots = m_context.getDataFile(SNAPSHOT_DIR).listFiles();
+        if (snapshots != null) {
+            // the bundles of deployment packages are installed from a location that contains their symbolic name
+            Set installed = new HashSet();
+            Bundle[] bundles = m_context.getBundles();
+            for (int i = 0; i < bundles.length; i++) {
+                String location = bundles[i].getLocation();
+                if (location != null && location.startsWith(Constants.BUNDLE_LOCATION_PREFIX)) {
+                    installed.add(location.substring(Constants.BUNDLE_LOCATION_PREFIX.length()));
+                }
+            }
+            for (int i = 0; i < snapshots.length; i++) {
+                if (!m_keepSnapshots || !snapshots[i].isDirectory() || !installed.contains(snapshots[i].getName())) {
+                    m_janitor.delete(snapshots[i]);
+                }
+            }
         }
     }
 
 
+    /**
+     * Loads the deployment packages that were staged before the last shutdown, packages that can not be read
+     * are deleted.
+     *
+     * @param indices <code>List</code> to which the indices of all staged packages are added.
+     */
+    private void loadStagedPackages(List indices) {
+        File stagedDir = m_context.getDataFile(STAGED_DIR);
+        File[] staged = stagedDir.listFiles();
+        if (staged == null) {
+            return;
+        }
+        for (int i = 0; i < staged.length; i++) {
+            try {
+                StagedFileDeploymentPackage dp = new StagedFileDeploymentPackage(staged[i], m_context, this);
+                indices.add(dp.getIndex());
+                m_staged.put(dp.getId(), dp);
+            }
+            catch (Exception e) {
+                m_logService.log(LogService.LOG_WARNING, "Could not read staged deployment package from disk, deleting: '" + staged[i].getAbsolutePath() + "'");
+                m_janitor.delete(staged[i]);
+            }
+        }
+    }
+
     public void stop() {
         cancel();
+        // the registry may only be written once no session changes the installed packages anymore
+        boolean drained = false;
+        try {
+            drained = m_operationLock.writeLock().tryLock(m_timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        m_stopped = true;
+        if (drained) {
+            try {
+                writeRegistry();
+            }
+            finally {
+                m_operationLock.writeLock().unlock();
+            }
+        }
+        else {
+            m_logService.log(LogService.LOG_WARNING, "Deployment sessions are still running, packages are read from disk on the next start");
+        }
+        m_executor.shutdown();
+        m_workExecutor.shutdown();
+        m_janitor.stop();
+        m_ownership.close();
+        m_bundleIndex.close();
+        m_resourceProcessors.close();
+        m_dataAreas.close();
     }
 
     public boolean cancel() {
-        if (m_session != null) {
-            m_session.cancel();
-            return true;
+        DeploymentSessionImpl[] sessions;
+        synchronized (m_sessions) {
+            sessions = (DeploymentSessionImpl[]) m_sessions.toArray(new DeploymentSessionImpl[m_sessions.size()]);
         }
-        return false;
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i].cancel();
+        }
+        return sessions.length > 0;
     }
 
     public DeploymentPackage getDeploymentPackage(String symbName) {
         if (symbName == null) {
             throw new IllegalArgumentException("Symbolic name may not be null");
         }
-        return (DeploymentPackage) m_packages.get(symbName);
+        return getPackage(symbName);
     }
 
     public DeploymentPackage getDeploymentPackage(Bundle bundle) {
         if (bundle == null) {
             throw new IllegalArgumentException("Bundle can not be null");
         }
-        for (Iterator i = m_packages.values().iterator(); i.hasNext();) {
-            DeploymentPackage dp = (DeploymentPackage) i.next();
-            if (dp.getBundle(bundle.getSymbolicName()) != null) {
-                return dp;
+        String symbolicName = bundle.getSymbolicName();
+        if (symbolicName == null) {
+            return null;
+        }
+        synchronized (m_packages) {
+            if (!m_indexed) {
+                // packages only known from the registry are not indexed yet
+                getPackages();
+            }
+            Set names = (Set) m_bundlePackages.get(symbolicName);
+            return (names == null || names.isEmpty()) ? null : getPackage((String) names.iterator().next());
+        }
+    }
+
+    /**
+     * Locks the deployment package with the specified name for a deployment session. Besides the name of the
+     * package, the bundles and resource processors of both the source and the currently installed target package
+     * are locked. Sessions of other deployment packages only have to wait if they share one of these.
+     *
+     * @param name The symbolic name of the deployment package.
+     * @param source The source deployment package of the session.
+     * @return The acquired lock, the target package can not be changed by other sessions until it is released.
+     * @throws DeploymentException If the lock could not be acquired in time.
+     */
+    private PackageLockManager.Lock acquireLock(String name, AbstractDeploymentPackage source) throws DeploymentException {
+        // retries share the timeout, a package that keeps being replaced must not extend the wait
+        long deadline = System.currentTimeMillis() + m_timeout;
+        while (true) {
+            AbstractDeploymentPackage target = (AbstractDeploymentPackage) getDeploymentPackage(name);
+            Set bundles = new HashSet();
+            Set processors = new HashSet();
+            addLockKeys(source, bundles, processors);
+            addLockKeys(target, bundles, processors);
+            PackageLockManager.Lock lock;
+            try {
+                lock = m_lockManager.tryAcquire(name, bundles, processors, Math.max(0, deadline - System.currentTimeMillis()));
+            }
+            catch (InterruptedException ie) {
+                throw new DeploymentException(DeploymentException.CODE_TIMEOUT, "Thread interrupted");
+            }
+            if (lock == null) {
+                throw new DeploymentException(DeploymentException.CODE_TIMEOUT, "Timeout exceeded while waiting to lock deployment package '" + name + "' (" + m_timeout + "msec)");
+            }
+            if (getDeploymentPackage(name) == target) {
+                return lock;
             }
+            // the package was replaced while we were waiting, its bundles may have changed
+            m_lockManager.release(lock);
+        }
+    }
+
+    private void addLockKeys(AbstractDeploymentPackage dp, Set bundles, Set processors) {
+        if (dp == null) {
+            return;
+        }
+        BundleInfoImpl[] bundleInfos = dp.getBundleInfoImpls();
+        for (int i = 0; i < bundleInfos.length; i++) {
+            bundles.add(bundleInfos[i].getSymbolicName());
+        }
+        ResourceInfoImpl[] resourceInfos = dp.getResourceInfos();
+        for (int i = 0; i < resourceInfos.length; i++) {
+            processors.add(resourceInfos[i].getResourceProcessor());
         }
-        return null;
     }
 
     public DeploymentPackage installDeploymentPackage(InputStream input) throws DeploymentException {
         if (input == null) {
             throw new IllegalArgumentException("Inputstream may not be null");
         }
-        try {
-            if (!m_semaphore.tryAcquire(TIMEOUT)) {
-                throw new DeploymentException(DeploymentException.CODE_TIMEOUT, "Timeout exceeded while waiting to install deployment package (" + TIMEOUT + "msec)");
-            }
-        }
-        catch (InterruptedException ie) {
-            throw new DeploymentException(DeploymentException.CODE_TIMEOUT, "Thread interrupted");
-        }
 
         JarInputStream jarInput = null;
+        ExplodingOutputtingInputStream exploder = null;
         File tempPackage = null;
         File tempIndex = null;
-        File tempContents = null;
 
         try {
-            try {
-                File tempDir = m_context.getDataFile(TEMP_DIR);
-                tempDir.mkdirs();
-                tempPackage = File.createTempFile(TEMP_PREFIX, TEMP_POSTFIX, tempDir);
-                tempPackage.delete();
-                tempPackage.mkdirs();
-                tempIndex = new File(tempPackage, PACKAGEINDEX_FILE);
-                tempContents = new File(tempPackage, PACKAGECONTENTS_DIR);
-                tempContents.mkdirs();
-                input = new ExplodingOutputtingInputStream(input, tempIndex, tempContents);
-            }
-            catch (IOException e) {
-                m_logService.log(LogService.LOG_ERROR, "Error writing package to disk", e);
-                throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Error writing package to disk", e);
-            }
-            try {
-                jarInput = new JarInputStream(input);
-            }
-            catch (IOException e) {
-                m_logService.log(LogService.LOG_ERROR, "Stream does not contain a valid Jar", e);
-                throw new DeploymentException(DeploymentException.CODE_NOT_A_JAR, "Stream does not contain a valid Jar", e);
-            }
+            tempPackage = createPackageDir(TEMP_DIR);
+            tempIndex = new File(tempPackage, PACKAGEINDEX_FILE);
+            exploder = new ExplodingOutputtingInputStream(input, tempIndex, m_blobStore, m_storagePolicy, m_executor, m_pipeSize);
         }
-        finally {
-            m_semaphore.release();
+        catch (IOException e) {
+            m_logService.log(LogService.LOG_ERROR, "Error writing package to disk", e);
+            throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Error writing package to disk", e);
+        }
+        try {
+            jarInput = new JarInputStream(exploder);
+        }
+        catch (IOException e) {
+            m_logService.log(LogService.LOG_ERROR, "Stream does not contain a valid Jar", e);
+            throw new DeploymentException(DeploymentException.CODE_NOT_A_JAR, "Stream does not contain a valid Jar", e);
         }
 
         StreamDeploymentPackage source = new StreamDeploymentPackage(jarInput, m_context, this);
 
+        // a package that is already installed in the same version is recognized from its manifest alone
+        AbstractDeploymentPackage installed = (AbstractDeploymentPackage) getDeploymentPackage(source.getName());
+        if (isSameVersion(installed, source)) {
+            m_logService.log(LogService.LOG_INFO, "Same package version '" + installed.getVersion() + "' - Do nothing");
+            abortInstall(exploder, jarInput);
+            releaseTemporaryPackage(tempIndex, null);
+            m_janitor.delete(tempPackage);
+            // listeners still see a complete installation, the NOOP event only tells them nothing changed
+            sendInstallEvent(source.getName(), installed, source);
+            sendNoopEvent(source.getName(), installed);
+            sendCompleteEvent(source.getName(), installed, source, true);
+            return installed;
+        }
+
+        return installPackage(source, tempPackage, exploder, jarInput, true);
+    }
+
+    /**
+     * Creates a new, empty directory to receive a deployment package in.
+     *
+     * @param parent Name of the data area directory the package directory is created in.
+     * @return The package directory, it contains an empty contents directory.
+     * @throws IOException If the directory could not be created.
+     */
+    private File createPackageDir(String parent) throws IOException {
+        File parentDir = m_context.getDataFile(parent);
+        parentDir.mkdirs();
+        File packageDir = File.createTempFile(TEMP_PREFIX, TEMP_POSTFIX, parentDir);
+        packageDir.delete();
+        packageDir.mkdirs();
+        new File(packageDir, PACKAGECONTENTS_DIR).mkdirs();
+        return packageDir;
+    }
+
+    /**
+     * Installs a received deployment package. A deployment session is run under the lock of the package, if it
+     * succeeds the received package is stored as the installed one.
+     *
+     * @param source The received deployment package.
+     * @param sourcePackage The directory holding the index and contents of the received package.
+     * @param exploder The exploder still writing the received package to disk, <code>null</code> if it is stored completely.
+     * @param jarInput The stream the package is read from, <code>null</code> if it is stored completely.
+     * @param discardOnFailure True if the received package is deleted when the installation fails, it is always deleted when it succeeds.
+     * @return The installed deployment package.
+     * @throws DeploymentException If the installation failed.
+     */
+    private DeploymentPackage installPackage(AbstractDeploymentPackage source, File sourcePackage, ExplodingOutputtingInputStream exploder, JarInputStream jarInput, boolean discardOnFailure) throws DeploymentException {
+        enterOperation();
+        try {
+            return installPackageUnderOperation(source, sourcePackage, exploder, jarInput, discardOnFailure);
+        }
+        finally {
+            exitOperation();
+        }
+    }
+
+    private DeploymentPackage installPackageUnderOperation(AbstractDeploymentPackage source, File sourcePackage, ExplodingOutputtingInputStream exploder, JarInputStream jarInput, boolean discardOnFailure) throws DeploymentException {
+        File sourceIndex = new File(sourcePackage, PACKAGEINDEX_FILE);
+        File sourceContents = new File(sourcePackage, PACKAGECONTENTS_DIR);
+        PackageIndex sourceEntries = null;
+
         boolean succeeded = false;
         AbstractDeploymentPackage target = null;
+        PackageLockManager.Lock lock = null;
+        DeploymentSessionImpl session = null;
         try {
+            lock = acquireLock(source.getName(), source);
             target = (AbstractDeploymentPackage) getDeploymentPackage(source.getName());
             sendInstallEvent(source.getName(), target, source);
             boolean newPackage = (target == null);
             if (newPackage) {
                 target = AbstractDeploymentPackage.emptyPackage;
-            } else {
-            	// Check if the version are the same.
-            	if (target.getVersion() != null  && target.getVersion().equals(source.getVersion())) {
-                    m_logService.log(LogService.LOG_INFO, "Same package version '" + target.getVersion() + " - Do nothing");
-                    return target;
-            	}
+            } else if (isSameVersion(target, source)) {
+                // the same version was installed while we were waiting for the lock
+                m_logService.log(LogService.LOG_INFO, "Same package version '" + target.getVersion() + "' - Do nothing");
+                abortInstall(exploder, jarInput);
+                sendNoopEvent(source.getName(), target);
+                succeeded = true;
+                return target;
             }
 
             if (source.isFixPackage() && ((newPackage) || (!source.getVersionRange().isInRange(target.getVersion())))) {
@@ -231,26 +736,37 @@ public class DeploymentAdminImpl implements DeploymentAdmin {
                 throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Target package version '" + target.getVersion() + "' is not in source range '" + source.getVersionRange() + "'");
             }
             try {
-                m_session = new DeploymentSessionImpl(source, target, m_installCommands, this);
-                m_session.call();
+                session = new DeploymentSessionImpl(source, target, createInstallCommands(), this);
+                m_sessions.add(session);
+                session.call();
             }
             catch (DeploymentException de) {
                 succeeded = false;
                 throw de;
             }
+            if (jarInput != null) {
+                try {
+                    jarInput.close();
+                }
+                catch (IOException e) {
+                    // nothing we can do
+                    m_logService.log(LogService.LOG_WARNING, "Could not close stream properly", e);
+                }
+            }
             try {
-                jarInput.close();
+                sourceEntries = PackageIndex.read(sourceIndex);
             }
             catch (IOException e) {
-                // nothing we can do
-                m_logService.log(LogService.LOG_WARNING, "Could not close stream properly", e);
+                m_logService.log(LogService.LOG_ERROR, "Could not read the index of the received deployment package", e);
+                throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Could not read the index of the received deployment package", e);
             }
 
             File targetContents = m_context.getDataFile(PACKAGE_DIR + File.separator + source.getName() + File.separator + PACKAGECONTENTS_DIR);
             File targetIndex = m_context.getDataFile(PACKAGE_DIR + File.separator + source.getName() + File.separator + PACKAGEINDEX_FILE);
+            m_registry.invalidate();
             if (source.isFixPackage()) {
                 try {
-                    ExplodingOutputtingInputStream.merge(targetIndex, targetContents, tempIndex, tempContents);
+                    ExplodingOutputtingInputStream.merge(targetIndex, targetContents, sourceEntries, sourceContents, m_blobStore);
                 }
                 catch (IOException e) {
                     succeeded = false;
@@ -258,15 +774,22 @@ public class DeploymentAdminImpl implements DeploymentAdmin {
                     throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Could not merge source fix package with target deployment package", e);
                 }
             } else {
-                m_packages.remove(source.getName());  // Remove the source...
+                removePackage(source.getName());  // Remove the source...
                 File targetPackage = m_context.getDataFile(PACKAGE_DIR + File.separator + source.getName());
                 targetPackage.mkdirs();
-                ExplodingOutputtingInputStream.replace(targetPackage, tempPackage);
+                try {
+                    ExplodingOutputtingInputStream.replace(targetPackage, sourcePackage, m_blobStore);
+                }
+                catch (IOException e) {
+                    succeeded = false;
+                    m_logService.log(LogService.LOG_ERROR, "Could not replace target deployment package", e);
+                    throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Could not replace target deployment package", e);
+                }
             }
             FileDeploymentPackage fileDeploymentPackage = null;
             try {
                 fileDeploymentPackage = new FileDeploymentPackage(targetIndex, targetContents, m_context, this);
-                m_packages.put(source.getName(), fileDeploymentPackage);
+                putPackage(fileDeploymentPackage);
             }
             catch (IOException e) {
                 succeeded = false;
@@ -276,24 +799,203 @@ public class DeploymentAdminImpl implements DeploymentAdmin {
             succeeded = true;
             return fileDeploymentPackage;
         } finally {
-            delete(tempPackage);
-            sendCompleteEvent(source.getName(), target, source, succeeded);
-            m_semaphore.release();
+            if (session != null) {
+                m_sessions.remove(session);
+            }
+            if (!succeeded) {
+                // the exploder has to finish before the received package is released and deleted
+                abortInstall(exploder, jarInput);
+            }
+            if (succeeded || discardOnFailure) {
+                releaseTemporaryPackage(sourceIndex, sourceEntries);
+                m_janitor.delete(sourcePackage);
+            }
+            if (lock != null) {
+                sendCompleteEvent(source.getName(), target, source, succeeded);
+                m_lockManager.release(lock);
+            }
         }
     }
 
-    private void delete(File target) {
-        if (target.isDirectory()) {
-            File[] childs = target.listFiles();
-            for (int i = 0; i < childs.length; i++) {
-                delete(childs[i]);
+    public StagedDeploymentPackage stageDeploymentPackage(InputStream input) throws DeploymentException {
+        if (input == null) {
+            throw new IllegalArgumentException("Inputstream may not be null");
+        }
+
+        File stagedPackage = null;
+        ExplodingOutputtingInputStream exploder = null;
+        try {
+            stagedPackage = createPackageDir(STAGED_DIR);
+            exploder = new ExplodingOutputtingInputStream(input, new File(stagedPackage, PACKAGEINDEX_FILE), m_blobStore, m_storagePolicy, m_executor, m_pipeSize);
+        }
+        catch (IOException e) {
+            if (stagedPackage != null) {
+                m_janitor.delete(stagedPackage);
+            }
+            m_logService.log(LogService.LOG_ERROR, "Error writing package to disk", e);
+            throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Error writing package to disk", e);
+        }
+
+        StagedFileDeploymentPackage staged = null;
+        try {
+            JarInputStream jarInput;
+            try {
+                jarInput = new JarInputStream(exploder);
+            }
+            catch (IOException e) {
+                m_logService.log(LogService.LOG_ERROR, "Stream does not contain a valid Jar", e);
+                throw new DeploymentException(DeploymentException.CODE_NOT_A_JAR, "Stream does not contain a valid Jar", e);
+            }
+            try {
+                // the exploder stores every entry while the stream is consumed
+                byte[] buffer = new byte[8192];
+                while (jarInput.getNextJarEntry() != null) {
+                    while (jarInput.read(buffer) != -1) {
+                        // only read to the end of the entry
+                    }
+                }
+                jarInput.close();
+                staged = new StagedFileDeploymentPackage(stagedPackage, m_context, this);
+            }
+            catch (IOException e) {
+                m_logService.log(LogService.LOG_ERROR, "Could not stage deployment package", e);
+                throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Could not stage deployment package", e);
+            }
+            staged.verify();
+            m_staged.put(staged.getId(), staged);
+            m_logService.log(LogService.LOG_INFO, "Staged deployment package '" + staged.getName() + "' version '" + staged.getVersion() + "' as '" + staged.getId() + "'");
+            return staged;
+        }
+        finally {
+            if (staged == null || !m_staged.containsKey(staged.getId())) {
+                exploder.abort();
+                releaseTemporaryPackage(new File(stagedPackage, PACKAGEINDEX_FILE), null);
+                m_janitor.delete(stagedPackage);
+            }
+        }
+    }
+
+    public DeploymentPackage activate(StagedDeploymentPackage staged) throws DeploymentException {
+        if (staged == null) {
+            throw new IllegalArgumentException("Staged package may not be null");
+        }
+        StagedFileDeploymentPackage source = (StagedFileDeploymentPackage) m_staged.get(staged.getId());
+        if (source == null) {
+            throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Deployment package '" + staged.getId() + "' is not staged");
+        }
+        synchronized (source) {
+            if (m_staged.get(source.getId()) != source) {
+                throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Deployment package '" + staged.getId() + "' is not staged");
+            }
+            source.reset();
+            boolean activated = false;
+            try {
+                DeploymentPackage result = installPackage(source, source.getPackageDir(), null, null, false);
+                activated = true;
+                return result;
+            }
+            finally {
+                if (activated) {
+                    m_staged.remove(source.getId());
+                }
+            }
+        }
+    }
+
+    public void discard(StagedDeploymentPackage staged) {
+        if (staged == null) {
+            return;
+        }
+        StagedFileDeploymentPackage source = (StagedFileDeploymentPackage) m_staged.get(staged.getId());
+        if (source == null) {
+            return;
+        }
+        synchronized (source) {
+            if (m_staged.remove(source.getId()) != null) {
+                releaseTemporaryPackage(new File(source.getPackageDir(), PACKAGEINDEX_FILE), null);
+                m_janitor.delete(source.getPackageDir());
+            }
+        }
+    }
+
+    public StagedDeploymentPackage[] listStagedDeploymentPackages() {
+        synchronized (m_staged) {
+            Collection staged = m_staged.values();
+            return (StagedDeploymentPackage[]) staged.toArray(new StagedDeploymentPackage[staged.size()]);
+        }
+    }
+
+    private boolean isSameVersion(AbstractDeploymentPackage installed, AbstractDeploymentPackage source) {
+        return installed != null && installed.getVersion() != null && installed.getVersion().equals(source.getVersion());
+    }
+
+    /**
+     * Stops receiving a deployment package that will not be installed. The exploder stops writing entries and the
+     * remainder of the stream is not read.
+     *
+     * @param exploder The exploder writing the received package to disk.
+     * @param jarInput The stream the package is read from.
+     */
+    private void abortInstall(ExplodingOutputtingInputStream exploder, JarInputStream jarInput) {
+        if (exploder != null) {
+            exploder.abort();
+        }
+        if (jarInput != null) {
+            try {
+                jarInput.close();
+            }
+            catch (IOException e) {
+                m_logService.log(LogService.LOG_WARNING, "Could not close stream properly", e);
+            }
+        }
+    }
+
+    /**
+     * Releases the blobs stored while receiving a deployment package. Installed packages retain the blobs they refer
+     * to on their own, so this is done whether the installation succeeded or not.
+     *
+     * @param tempIndex The index file of the received package.
+     * @param tempEntries The index of the received package or <code>null</code> if it was not read yet.
+     */
+    private void releaseTemporaryPackage(File tempIndex, PackageIndex tempEntries) {
+        if (tempEntries == null && tempIndex != null && tempIndex.exists()) {
+            try {
+                tempEntries = PackageIndex.read(tempIndex);
+            }
+            catch (IOException e) {
+                m_logService.log(LogService.LOG_WARNING, "Could not read the index of the received deployment package, its entries are kept until restart", e);
+            }
+        }
+        if (tempEntries != null) {
+            m_blobStore.release(tempEntries);
+        }
+    }
+
+    /**
+     * Deletes an uninstalled deployment package from disk and releases the blobs it referred to.
+     *
+     * @param name The symbolic name of the deployment package.
+     */
+    private void deletePackage(String name) {
+        File packageDir = m_context.getDataFile(PACKAGE_DIR + File.separator + name);
+        File index = new File(packageDir, PACKAGEINDEX_FILE);
+        PackageIndex entries = null;
+        if (index.exists()) {
+            try {
+                entries = PackageIndex.read(index);
             }
+            catch (IOException e) {
+                m_logService.log(LogService.LOG_WARNING, "Could not read the index of deployment package '" + name + "', its entries are kept until restart", e);
+            }
+        }
+        m_janitor.delete(packageDir);
+        if (entries != null) {
+            m_blobStore.release(entries);
         }
-        target.delete();
     }
 
     public DeploymentPackage[] listDeploymentPackages() {
-        Collection packages = m_packages.values();
+        List packages = getPackages();
         return (DeploymentPackage[]) packages.toArray(new DeploymentPackage[packages.size()]);
     }
 
@@ -324,6 +1026,135 @@ public class DeploymentAdminImpl implements DeploymentAdmin {
         return m_packageAdmin;
     }
 
+    /**
+     * @return True if deployment sessions should start bundles that are not wired to each other concurrently.
+     */
+    public boolean isParallelStart() {
+        return m_parallelStart;
+    }
+
+    /**
+     * @return True if deployment sessions should stop bundles concurrently in the reverse order of their wiring.
+     */
+    public boolean isParallelStop() {
+        return m_parallelStop;
+    }
+
+    /**
+     * @return True if snapshots of storage areas are kept after a deployment session is committed.
+     */
+    public boolean isKeepSnapshots() {
+        return m_keepSnapshots;
+    }
+
+    /**
+     * @return True if deployment sessions should let different resource processors process their resources concurrently.
+     */
+    public boolean isParallelProcess() {
+        return m_parallelProcess;
+    }
+
+    /**
+     * @return The size up to which resources waiting for their resource processor are buffered in memory.
+     */
+    public int getSpoolSize() {
+        return m_spoolSize;
+    }
+
+    /**
+     * @return True if deployment sessions should prepare and commit resource processors concurrently.
+     */
+    public boolean isParallelCommit() {
+        return m_parallelCommit;
+    }
+
+    /**
+     * @return The number of milliseconds to wait for resource processors to prepare or commit when they are prepared and committed concurrently.
+     */
+    public long getCommitTimeout() {
+        return m_commitTimeout;
+    }
+
+    /**
+     * @return The number of milliseconds to wait for a bundle to stop when bundles are stopped concurrently.
+     */
+    public long getStopTimeout() {
+        return m_stopTimeout;
+    }
+
+    /**
+     * @return False if bundles that are not affected by a deployment session do not need to be stopped.
+     */
+    public boolean isStopUnaffectedBundles() {
+        return m_stopUnaffectedBundles;
+    }
+
+    /**
+     * @return The index of the installed bundles by symbolic name.
+     */
+    public BundleIndex getBundleIndex() {
+        return m_bundleIndex;
+    }
+
+    /**
+     * @return The tracker of the registered resource processors by PID.
+     */
+    public ResourceProcessorTracker getResourceProcessors() {
+        return m_resourceProcessors;
+    }
+
+    /**
+     * @return The cache of the storage areas of bundles.
+     */
+    public DataAreaCache getDataAreas() {
+        return m_dataAreas;
+    }
+
+    /**
+     * @return The janitor deleting directory trees in the background.
+     */
+    public Janitor getJanitor() {
+        return m_janitor;
+    }
+
+    /**
+     * Returns the executor deployment sessions run concurrent work on, its number of threads is configured
+     * with the <code>de.akquinet.gomobile.deploymentadmin.workers</code> property.
+     *
+     * @return The <code>ExecutorService</code>.
+     */
+    public ExecutorService getWorkExecutor() {
+        return m_workExecutor;
+    }
+
+    /**
+     * Returns the executor for work that blocks until other work is done, it creates threads as needed so such work
+     * can never starve the work executor.
+     *
+     * @return The <code>ExecutorService</code>.
+     */
+    public ExecutorService getExecutor() {
+        return m_executor;
+    }
+
+    /**
+     * Returns the object package refreshes of all deployment sessions are synchronized on.
+     *
+     * @return The lock object.
+     */
+    public Object getRefreshLock() {
+        return m_refreshLock;
+    }
+
+    /**
+     * Returns reference to the store holding the contents of all deployment packages.
+     *
+     * @return The <code>BlobStore</code>.
+     */
+    public BlobStore getBlobStore() {
+        return m_blobStore;
+    }
+
     private void sendInstallEvent(String name, AbstractDeploymentPackage orig, AbstractDeploymentPackage dest) {
         Dictionary props = new Properties();
         props.put(DeploymentPackage.EVENT_DEPLOYMENTPACKAGE_NAME, name);
@@ -361,6 +1192,17 @@ public class DeploymentAdminImpl implements DeploymentAdmin {
         m_eventAdmin.postEvent(event);
     }
 
+    private void sendNoopEvent(String name, AbstractDeploymentPackage installed) {
+        Dictionary props = new Hashtable();
+        props.put(DeploymentPackage.EVENT_DEPLOYMENTPACKAGE_NAME, name);
+        props.put(DeploymentPackage.EVENT_DEPLOYMENTPACKAGE_CURRENTVERSION, installed.getVersion());
+        if (installed.getDisplayName() != null) {
+            props.put(DeploymentPackage.EVENT_DEPLOYMENTPACKAGE_READABLENAME, installed.getDisplayName());
+        }
+        Event event = new Event(Constants.EVENTTOPIC_NOOP, props);
+        m_eventAdmin.postEvent(event);
+    }
+
     private void sendCompleteEvent(String name, AbstractDeploymentPackage orig, AbstractDeploymentPackage dest, boolean success) {
         Dictionary props = new Hashtable();
         props.put(DeploymentPackage.EVENT_DEPLOYMENTPACKAGE_NAME, name);
@@ -384,41 +1226,61 @@ public class DeploymentAdminImpl implements DeploymentAdmin {
     }
 
     public boolean uninstall(AbstractDeploymentPackage dp, boolean forced) throws DeploymentException {
-
-        m_uninstallCommands.clear();
-        m_uninstallCommands.add(new StopBundleCommand());
-        CommitResourceCommand commitCommand2 = new CommitResourceCommand();
-        m_uninstallCommands.add(new DropAllResourcesCommand(commitCommand2, forced));
-        m_uninstallCommands.add(new DropResourceCommand(commitCommand2, forced));
-        m_uninstallCommands.add(commitCommand2);
-        m_uninstallCommands.add(new UninstallBundleCommand());
-
+        enterOperation();
         try {
-            if (!m_semaphore.tryAcquire(TIMEOUT)) {
-                throw new DeploymentException(DeploymentException.CODE_TIMEOUT, "Timeout exceeded while waiting to install deployment package (" + TIMEOUT + "msec)");
-            }
+            return uninstallUnderOperation(dp, forced);
         }
-        catch (InterruptedException ie) {
-            throw new DeploymentException(DeploymentException.CODE_TIMEOUT, "Thread interrupted");
+        finally {
+            exitOperation();
         }
+    }
+
+    /**
+     * Marks the start of an operation that changes the installed packages, the deployment admin does not stop
+     * while operations are running.
+     *
+     * @throws DeploymentException If the deployment admin is stopped.
+     */
+    private void enterOperation() throws DeploymentException {
+        m_operationLock.readLock().lock();
+        if (m_stopped) {
+            m_operationLock.readLock().unlock();
+            throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Deployment Admin is stopped");
+        }
+    }
+
+    private void exitOperation() {
+        m_operationLock.readLock().unlock();
+    }
+
+    private boolean uninstallUnderOperation(AbstractDeploymentPackage dp, boolean forced) throws DeploymentException {
+
+        PackageLockManager.Lock lock = acquireLock(dp.getName(), AbstractDeploymentPackage.emptyPackage);
 
         sendUninstallEvent(dp.getName(), dp);
 
         boolean failed = false;
+        DeploymentSessionImpl session = null;
         try {
-            m_session = new DeploymentSessionImpl(AbstractDeploymentPackage.emptyPackage, dp, m_uninstallCommands, this);
-            m_session.call();
+            session = new DeploymentSessionImpl(AbstractDeploymentPackage.emptyPackage, dp, createUninstallCommands(forced), this);
+            m_sessions.add(session);
+            session.call();
 
-            m_packages.remove(dp.getName());
+            m_registry.invalidate();
+            removePackage(dp.getName());
+            deletePackage(dp.getName());
 
-            failed = m_session.hasFailed();
+            failed = session.hasFailed();
         }
         catch (DeploymentException de) {
             getLog().log(LogService.LOG_ERROR, "An exception occured during the " +
                     "uninstallation of a deployement package", de);
             failed = true;
         } finally {
-            m_semaphore.release();
+            if (session != null) {
+                m_sessions.remove(session);
+            }
+            m_lockManager.release(lock);
             sendCompleteEvent(dp.getName(), dp, null, ! failed);
         }
 
@@ -433,25 +1295,7 @@ public class DeploymentAdminImpl implements DeploymentAdmin {
 
     public Bundle installBundle(String sn, InputStream is, AbstractDeploymentPackage dp) throws BundleException {
         Bundle bundle = m_context.installBundle(Constants.BUNDLE_LOCATION_PREFIX + sn, is);
-
-        if (m_sharedOwnership ) {
-            System.out.println("Installing " + bundle.getSymbolicName() + " from " + dp.getName() + " - " + m_bundleToPackage.containsKey(getBundleKey(bundle)));
-
-            if (m_bundleToPackage.containsKey(getBundleKey(bundle))) {
-                List l = (List) m_bundleToPackage.get(getBundleKey(bundle));
-                // Already installed ?
-                if (! l.contains(dp.getName())) {
-                    l.add(dp.getName());
-                    System.out.println("Bundle " + bundle.getSymbolicName() + " -> " + l);
-                }
-            } else {
-                List l = new ArrayList();
-                l.add(dp.getName());
-                m_bundleToPackage.put(getBundleKey(bundle), l);
-                //TODO DEBUG
-                System.out.println("Bundle " + bundle.getSymbolicName() + " -> " + dp.getName());
-            }
-        }
+        addOwnership(bundle, dp);
         return bundle;
     }
 
@@ -461,84 +1305,78 @@ public class DeploymentAdminImpl implements DeploymentAdmin {
             return;
         }
 
-        if (m_bundleToPackage.containsKey(getBundleKey(bundle))) {
-            List l = (List) m_bundleToPackage.get(getBundleKey(bundle));
-            if (l.contains(dp.getName())) {
-                if (l.size() == 1) {
-                    // Drop bundle, Clear list
-                    l.clear();
-                    m_bundleToPackage.remove(getBundleKey(bundle));
+        String key = getBundleKey(bundle);
+        synchronized (m_ownership) {
+            if (m_ownership.isOwner(key, dp.getName())) {
+                if (m_ownership.count(key) == 1) {
                     bundle.uninstall();
-                } else {
-                	l.remove(dp.getName());
-                    System.out.println("Bundle " + bundle.getSymbolicName() + " -> " + l);
                 }
-            } else {
-                // Oups, bad dp ?
-                System.err.println("Cannot uninstall the bundle " + bundle.getSymbolicName() + " from " + dp.getName() + ": " +
+                m_ownership.remove(key, dp.getName());
+                m_logService.log(LogService.LOG_DEBUG, "Bundle " + bundle.getSymbolicName() + " -> " + m_ownership.getOwners(key));
+            }
+            else if (m_ownership.count(key) == 0) {
+                // no package is known to own it, the package dropping it is the only one that contains it
+                bundle.uninstall();
+            }
+            else {
+                m_logService.log(LogService.LOG_WARNING, "Cannot uninstall the bundle " + bundle.getSymbolicName() + " from " + dp.getName() + ": " +
                         " bundle not owned by this package");
             }
-        } else {
-            // Weird case, we're trying to uninstall an not installed bundles
-            //TODO LOG HERE
-            System.err.println("Cannot uninstall a not installed bundle : " + bundle.getSymbolicName());
         }
     }
 
 	public Bundle updateBundle(Bundle bundle, InputStream is,
 			AbstractDeploymentPackage dp) throws BundleException {
 		bundle.update(is);
-		if (m_sharedOwnership) {
-			System.out.println("Updating " + bundle.getSymbolicName()
-					+ " from " + dp.getName() + " - "
-					+ m_bundleToPackage.containsKey(getBundleKey(bundle)));
-
-			if (m_bundleToPackage.containsKey(getBundleKey(bundle))) {
-				List l = (List) m_bundleToPackage.get(getBundleKey(bundle));
-				// Already installed ?
-				if (!l.contains(dp.getName())) {
-					l.add(dp.getName());
-					System.out.println("Bundle " + bundle.getSymbolicName()
-							+ " -> " + l);
-				}
-			} else {
-				List l = new ArrayList();
-				l.add(dp.getName());
-				m_bundleToPackage.put(getBundleKey(bundle), l);
-				// TODO DEBUG
-				System.out.println("Bundle " + bundle.getSymbolicName()
-						+ " -> " + dp.getName());
-			}
-		}
+		addOwnership(bundle, dp);
 		return bundle;
 	}
 
-	public void addOwnership(Bundle bundle, AbstractDeploymentPackage dp) {
-		if (m_sharedOwnership) {
-			System.out.println("Adding " + bundle.getSymbolicName()
-					+ " from " + dp.getName() + " - "
-					+ m_bundleToPackage.containsKey(getBundleKey(bundle)));
-
-			if (m_bundleToPackage.containsKey(getBundleKey(bundle))) {
-				List l = (List) m_bundleToPackage.get(getBundleKey(bundle));
-				// Already installed ?
-				if (!l.contains(dp.getName())) {
-					l.add(dp.getName());
-					System.out.println("Bundle " + bundle.getSymbolicName()
-							+ " -> " + l);
-				}
-			} else {
-				List l = new ArrayList();
-				l.add(dp.getName());
-				m_bundleToPackage.put(getBundleKey(bundle), l);
-				// TODO DEBUG
-				System.out.println("Bundle " + bundle.getSymbolicName()
-						+ " -> " + dp.getName());
-			}
+	/**
+	 * Makes a deployment package an owner of a bundle.
+	 *
+	 * @param bundle The bundle.
+	 * @param dp The deployment package.
+	 * @return <code>true</code> if the package did not own the bundle yet.
+	 */
+	public boolean addOwnership(Bundle bundle, AbstractDeploymentPackage dp) {
+		if (m_sharedOwnership && m_ownership.add(getBundleKey(bundle), dp.getName())) {
+			m_logService.log(LogService.LOG_DEBUG, "Bundle " + bundle.getSymbolicName() + " -> " + m_ownership.getOwners(getBundleKey(bundle)));
+			return true;
 		}
+		return false;
 	}
 
+	/**
+	 * Removes a deployment package from the owners of a bundle without uninstalling the bundle.
+	 *
+	 * @param bundle The bundle.
+	 * @param dp The deployment package.
+	 */
+	public void removeOwnership(Bundle bundle, AbstractDeploymentPackage dp) {
+		if (m_sharedOwnership && m_ownership.remove(getBundleKey(bundle), dp.getName())) {
+			m_logService.log(LogService.LOG_DEBUG, "Bundle " + bundle.getSymbolicName() + " -> " + m_ownership.getOwners(getBundleKey(bundle)));
+		}
+	}
 
-
-
+    /**
+     * Loads the index of the packages owning each bundle. If there is no index yet, it is created from the bundles of
+     * the installed deployment packages.
+     */
+    private void loadOwnership() {
+        try {
+            if (!m_ownership.load()) {
+                for (Iterator i = getPackages().iterator(); i.hasNext();) {
+                    AbstractDeploymentPackage dp = (AbstractDeploymentPackage) i.next();
+                    BundleInfoImpl[] infos = dp.getBundleInfoImpls();
+                    for (int j = 0; j < infos.length; j++) {
+                        m_ownership.add(infos[j].getSymbolicName(), dp.getName());
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            m_logService.log(LogService.LOG_WARNING, "Could not load the ownership index, changes to it are not persisted", e);
+        }
+    }
 }
@@ -77,6 +77,13 @@ public class DeploymentPackageManifest {
         return m_manifest.getMainAttributes().getValue(header);
     }
 
+    /**
+     * @return The manifest this deployment package manifest was created from.
+     */
+    public Manifest getManifest() {
+        return m_manifest;
+    }
+
     /**
      * Determines the version range a fix package can be applied to
      *
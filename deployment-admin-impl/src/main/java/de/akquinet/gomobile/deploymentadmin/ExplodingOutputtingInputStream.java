@@ -1,49 +1,56 @@
 package de.akquinet.gomobile.deploymentadmin;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
-import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 import java.util.jar.Attributes.Name;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
+import de.akquinet.gomobile.deploymentadmin.BlobStore.Blob;
+import de.akquinet.gomobile.deploymentadmin.BlobStore.BlobOutputStream;
+
 /**
- * This class will write all entries encountered in an inputstream to disk. An index of files written to disk is kept in an index file in the
- * order they were encountered. Each file is compressed using GZIP. All the work is done on a separate thread.
+ * This class will write all entries encountered in an inputstream to the <code>BlobStore</code>. An index of files written to disk is kept in an
+ * index file in the order they were encountered. New files are stored with the <code>StorageCodec</code> selected by the <code>StoragePolicy</code>,
+ * the codec and digest of every file are recorded in the index. All the work is done by a task on the specified executor, the data is
+ * handed to it through a bounded <code>RingBufferPipe</code> so reading the stream blocks once the task falls behind.
  */
 class ExplodingOutputtingInputStream extends OutputtingInputStream implements Runnable {
 
-    private final Thread m_task;
-    private final File m_contentDir;
+    private final Future m_task;
+    private final BlobStore m_store;
     private final File m_indexFile;
-    private final PipedInputStream m_input;
+    private final RingBufferPipe m_pipe;
+    private final InputStream m_input;
+    private final StoragePolicy m_policy;
+    private volatile IOException m_failure;
+    private volatile boolean m_aborted;
 
     /**
      * Creates an instance of this class.
      *
      * @param inputStream The input stream that will be written to disk as individual entries as it's read.
      * @param indexFile File to be used to write the index of all encountered files.
-     * @param contentDir File to be used as the directory to hold all files encountered in the stream.
+     * @param store The blob store that will hold all files encountered in the stream.
+     * @param policy The policy that selects how each file is stored.
+     * @param executor The executor running the task that writes the files.
+     * @param pipeSize The number of bytes that are buffered for the task.
      * @throws IOException If a problem occurs reading the stream resources.
      */
-    public ExplodingOutputtingInputStream(InputStream inputStream, File indexFile, File contentDir) throws IOException {
-        this(inputStream, new PipedOutputStream(), indexFile,  contentDir);
+    public ExplodingOutputtingInputStream(InputStream inputStream, File indexFile, BlobStore store, StoragePolicy policy, ExecutorService executor, int pipeSize) throws IOException {
+        this(inputStream, new RingBufferPipe(pipeSize), indexFile, store, policy, executor);
     }
 
     public void close() throws IOException {
@@ -51,21 +58,62 @@ class ExplodingOutputtingInputStream extends OutputtingInputStream implements Ru
         waitFor();
     }
 
-    private ExplodingOutputtingInputStream(InputStream inputStream, PipedOutputStream output, File index, File root) throws IOException {
-        super(inputStream, output);
-        m_contentDir = root;
+    private ExplodingOutputtingInputStream(InputStream inputStream, RingBufferPipe pipe, File index, BlobStore store, StoragePolicy policy, ExecutorService executor) throws IOException {
+        super(inputStream, pipe.getOutputStream());
+        m_store = store;
         m_indexFile = index;
-        m_input = new PipedInputStream(output);
-        m_task = new Thread(this, "DeploymentAdmin - ExplodingIncomingThread");
-        m_task.start();
+        m_policy = policy;
+        m_pipe = pipe;
+        m_input = pipe.getInputStream();
+        try {
+            m_task = executor.submit(this);
+        }
+        catch (RejectedExecutionException e) {
+            throw new IOException("Deployment admin is stopping, cannot explode stream");
+        }
+    }
+
+    /**
+     * Stops writing entries to disk. The remainder of the stream is discarded, entries that were already stored stay
+     * listed in the index so their blobs can be released.
+     */
+    public void abort() {
+        m_aborted = true;
+        try {
+            m_input.close();
+        }
+        catch (IOException e) {
+            // Not much we can do
+        }
+        try {
+            waitFor();
+        }
+        catch (IOException e) {
+            // the package is discarded anyway
+        }
     }
 
-    public void waitFor() {
+    /**
+     * Waits until all entries are written to disk.
+     *
+     * @throws IOException If an entry could not be written, unless writing was aborted on purpose. The index is
+     * incomplete in that case.
+     */
+    public void waitFor() throws IOException {
         try {
-            m_task.join();
+            m_task.get();
         }
         catch (InterruptedException e) {
             Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the package to be written to disk");
+        }
+        catch (ExecutionException e) {
+            // the task records its own failures
+        }
+        if (m_failure != null && !m_aborted) {
+            IOException e = new IOException("Could not write package to disk: " + m_failure.getMessage());
+            e.initCause(m_failure);
+            throw e;
         }
     }
 
@@ -75,34 +123,45 @@ class ExplodingOutputtingInputStream extends OutputtingInputStream implements Ru
         try {
             input = new ZipInputStream(m_input);
             writer = new PrintWriter(new FileWriter(m_indexFile));
+            PackageIndex index = new PackageIndex();
+            byte[] buffer = new byte[4096];
             for (ZipEntry entry = input.getNextEntry(); entry != null; entry = input.getNextEntry()) {
-                File current = new File(m_contentDir, entry.getName());
-                if (entry.isDirectory()) {
-                    current.mkdirs();
-                }
-                else {
-                    writer.println(entry.getName());
-                    File parent = current.getParentFile();
-                    if (parent != null) {
-                        parent.mkdirs();
+                if (!entry.isDirectory()) {
+                    // the first bytes of the entry determine how it is stored
+                    int head = 0;
+                    int read = 0;
+                    while (head < buffer.length && (read = input.read(buffer, head, buffer.length - head)) != -1) {
+                        head += read;
                     }
-                    OutputStream output = null;
+                    BlobOutputStream output = m_store.create(m_policy.select(buffer, head, read == -1));
+                    Blob blob;
                     try {
-                        output = new GZIPOutputStream(new FileOutputStream(current));
-                        byte[] buffer = new byte[4096];
+                        output.write(buffer, 0, head);
                         for (int i = input.read(buffer); i > -1; i = input.read(buffer)) {
                             output.write(buffer, 0, i);
                         }
+                        blob = output.store();
                     }
                     finally {
                         output.close();
                     }
+                    // an identical blob may already be present with another codec
+                    index.setAttribute(entry.getName(), PackageIndex.CODEC, blob.getCodec().getName());
+                    index.setAttribute(entry.getName(), PackageIndex.SHA256, blob.getKey());
+                    writer.println(index.format(entry.getName()));
                 }
                 input.closeEntry();
                 writer.flush();
             }
         } catch (IOException ex) {
-            // TODO: log this
+            // the writer learns about it from the broken pipe, the session from waitFor()
+            m_failure = ex;
+            m_pipe.fail(ex);
+        } catch (RuntimeException ex) {
+            IOException e = new IOException("Could not write entry: " + ex);
+            e.initCause(ex);
+            m_failure = e;
+            m_pipe.fail(e);
         }
         finally {
             if (input != null) {
@@ -119,10 +178,32 @@ class ExplodingOutputtingInputStream extends OutputtingInputStream implements Ru
         }
     }
 
-
-    public static void replace(File target, File source) {
+    /**
+     * Replaces an installed deployment package with a new one. The blobs referenced by the new package are retained,
+     * the ones referenced by the replaced package are released.
+     *
+     * @param target The directory of the installed package, it does not need to exist.
+     * @param source The directory of the new package.
+     * @param store The blob store.
+     * @throws IOException If the index of one of the packages could not be read or the new package could not be moved.
+     */
+    public static void replace(File target, File source, BlobStore store) throws IOException {
+        File targetIndex = new File(target, DeploymentAdminImpl.PACKAGEINDEX_FILE);
+        PackageIndex targetEntries = targetIndex.exists() ? PackageIndex.read(targetIndex) : null;
+        PackageIndex sourceEntries = PackageIndex.read(new File(source, DeploymentAdminImpl.PACKAGEINDEX_FILE));
+        store.retain(sourceEntries);
         delete(target, true);
-        source.renameTo(target);
+        if (!source.renameTo(target)) {
+            // the installed package is gone, nothing references its blobs or the ones retained for the new package
+            store.release(sourceEntries);
+            if (targetEntries != null) {
+                store.release(targetEntries);
+            }
+            throw new IOException("Could not move " + source.getAbsolutePath() + " to " + target.getAbsolutePath());
+        }
+        if (targetEntries != null) {
+            store.release(targetEntries);
+        }
     }
 
     private static void delete(File root, boolean deleteRoot) {
@@ -137,20 +218,40 @@ class ExplodingOutputtingInputStream extends OutputtingInputStream implements Ru
         }
     }
 
-    public static void merge(File targetIndex, File target, File sourceIndex, File source) throws IOException {
-        List targetFiles = readIndex(targetIndex);
-        List sourceFiles = readIndex(sourceIndex);
-        List result = new ArrayList(targetFiles);
+    /**
+     * Merges a fix package into an installed deployment package. Only the index of the installed package is
+     * rewritten, entries of the fix package stay in the blob store and are referenced from the merged index.
+     *
+     * @param targetIndex The index file of the installed package.
+     * @param target The contents directory of the installed package.
+     * @param sourceEntries The index of the fix package.
+     * @param source The contents directory of the fix package.
+     * @param store The blob store.
+     * @throws IOException If the packages could not be read or the merged package could not be written.
+     */
+    public static void merge(File targetIndex, File target, PackageIndex sourceEntries, File source, BlobStore store) throws IOException {
+        PackageIndex targetEntries = PackageIndex.read(targetIndex);
+        List targetFiles = targetEntries.getPaths();
+        List sourceFiles = sourceEntries.getPaths();
+        PackageIndex result = PackageIndex.read(targetIndex);
 
-        File manifestFile = new File(source, (String) sourceFiles.remove(0));
-        Manifest resultManifest = new Manifest(new GZIPInputStream(new FileInputStream(manifestFile)));
+        String manifestPath = (String) sourceFiles.remove(0);
+        StorageCodec manifestCodec = sourceEntries.getCodec(manifestPath);
+        InputStream manifestInput = sourceEntries.open(manifestPath, source, store);
+        Manifest resultManifest;
+        try {
+            resultManifest = new Manifest(manifestInput);
+        }
+        finally {
+            manifestInput.close();
+        }
 
         resultManifest.getMainAttributes().remove(new Name(Constants.DEPLOYMENTPACKAGE_FIXPACK));
 
-        for (Iterator i = result.iterator(); i.hasNext();) {
+        for (Iterator i = targetFiles.iterator(); i.hasNext();) {
             String targetFile = (String) i.next();
             if(!resultManifest.getEntries().containsKey(targetFile) && !targetFile.equals("META-INF/MANIFEST.MF")) {
-                i.remove();
+                result.remove(targetFile);
             }
         }
 
@@ -159,10 +260,7 @@ class ExplodingOutputtingInputStream extends OutputtingInputStream implements Ru
             if (targetFiles.contains(path)) {
                 (new File(target, path)).delete();
             }
-            else {
-                result.add(path);
-            }
-            (new File(source, path)).renameTo(new File(target, path));
+            result.add(path, sourceEntries);
         }
 
         targetFiles.removeAll(sourceFiles);
@@ -180,46 +278,28 @@ class ExplodingOutputtingInputStream extends OutputtingInputStream implements Ru
             (new File(target, path)).delete();
         }
 
-        GZIPOutputStream outputStream = new GZIPOutputStream(new FileOutputStream(new File(target, "META-INF/MANIFEST.MF")));
-        resultManifest.write(outputStream);
-        outputStream.close();
-        writeIndex(targetIndex, result);
-    }
-
-    public static List readIndex(File index) throws IOException {
-        BufferedReader reader = null;
+        BlobOutputStream outputStream = store.create(manifestCodec);
+        Blob manifest;
         try {
-            reader = new BufferedReader(new FileReader(index));
-            List result = new ArrayList();
-            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
-                result.add(line);
-            }
-            return result;
+            resultManifest.write(outputStream);
+            manifest = outputStream.store();
         }
         finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                }
-                catch (IOException e) {
-                    // Not much we can do
-                }
-            }
+            outputStream.close();
         }
-    }
-
-    private static void writeIndex(File index, List input) throws IOException {
-        PrintWriter writer = null;
+        (new File(target, "META-INF/MANIFEST.MF")).delete();
+        result.setAttribute("META-INF/MANIFEST.MF", PackageIndex.CODEC, manifest.getCodec().getName());
+        result.setAttribute("META-INF/MANIFEST.MF", PackageIndex.SHA256, manifest.getKey());
         try {
-            writer = new PrintWriter(new FileWriter(index));
-            for (Iterator iterator = input.iterator(); iterator.hasNext();) {
-                writer.println(iterator.next());
-            }
+            result.write(targetIndex);
         }
-        finally {
-            if (writer != null) {
-                writer.close();
-            }
+        catch (IOException e) {
+            store.release(manifest.getKey());
+            throw e;
         }
+        // storing the manifest already counted as a reference, the merged index accounts for it again
+        store.retain(result);
+        store.release(manifest.getKey());
+        store.release(targetEntries);
     }
 }
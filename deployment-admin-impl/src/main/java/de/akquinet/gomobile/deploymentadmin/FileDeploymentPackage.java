@@ -1,14 +1,12 @@
 package de.akquinet.gomobile.deploymentadmin;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.jar.Manifest;
-import java.util.zip.GZIPInputStream;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.service.deploymentadmin.DeploymentException;
@@ -18,8 +16,10 @@ import org.osgi.service.deploymentadmin.DeploymentException;
  */
 class FileDeploymentPackage extends AbstractDeploymentPackage {
 
+    private final PackageIndex m_entries;
     private final List m_index;
     private final File m_contentsDir;
+    private final BlobStore m_store;
 
     /**
      * Creates a new instance of a deployment package stored on disk.
@@ -32,13 +32,50 @@ class FileDeploymentPackage extends AbstractDeploymentPackage {
      * @throws IOException Thrown if there was a problem reading the resources from disk.
      */
     public FileDeploymentPackage(File index, File packageDir, BundleContext bundleContext, DeploymentAdminImpl admin) throws DeploymentException, IOException {
-        this(ExplodingOutputtingInputStream.readIndex(index), packageDir, bundleContext, admin);
+        this(PackageIndex.read(index), packageDir, bundleContext, admin);
     }
 
-    private FileDeploymentPackage(List index, File packageDir, BundleContext bundleContext, DeploymentAdminImpl admin) throws DeploymentException, IOException {
-        super(new Manifest(new GZIPInputStream(new FileInputStream(new File(packageDir, (String) index.remove(0))))), bundleContext, admin);
-        m_index = index;
+    /**
+     * Creates a new instance of a deployment package stored on disk from an index that was already read.
+     *
+     * @param index The index of the deployment package.
+     * @param packageDir Reference to the directory in which the package contents are stored.
+     * @param bundleContext The bundle context
+     * @param admin The deployment admin
+     * @throws DeploymentException Thrown if the disk contents do not resemble a valid deployment package.
+     * @throws IOException Thrown if there was a problem reading the resources from disk.
+     */
+    FileDeploymentPackage(PackageIndex index, File packageDir, BundleContext bundleContext, DeploymentAdminImpl admin) throws DeploymentException, IOException {
+        this(index, readManifest(index, packageDir, admin.getBlobStore()), packageDir, bundleContext, admin);
+    }
+
+    /**
+     * Creates a new instance of a deployment package stored on disk from an index and manifest that were already read.
+     *
+     * @param index The index of the deployment package.
+     * @param manifest The manifest of the deployment package.
+     * @param packageDir Reference to the directory in which the package contents are stored.
+     * @param bundleContext The bundle context
+     * @param admin The deployment admin
+     * @throws DeploymentException Thrown if the manifest does not describe a valid deployment package.
+     */
+    FileDeploymentPackage(PackageIndex index, Manifest manifest, File packageDir, BundleContext bundleContext, DeploymentAdminImpl admin) throws DeploymentException {
+        super(manifest, bundleContext, admin);
+        m_entries = index;
+        m_index = index.getPaths();
+        m_index.remove(0);
         m_contentsDir = packageDir;
+        m_store = admin.getBlobStore();
+    }
+
+    private static Manifest readManifest(PackageIndex index, File packageDir, BlobStore store) throws IOException {
+        InputStream input = index.open((String) index.getPaths().get(0), packageDir, store);
+        try {
+            return new Manifest(input);
+        }
+        finally {
+            input.close();
+        }
     }
 
     public BundleInfoImpl[] getOrderedBundleInfos() {
@@ -55,11 +92,35 @@ class FileDeploymentPackage extends AbstractDeploymentPackage {
     public InputStream getBundleStream(String symbolicName) throws IOException {
         BundleInfoImpl bundleInfo = getBundleInfoByName(symbolicName);
         if (bundleInfo != null) {
-            return new GZIPInputStream(new FileInputStream(new File(m_contentsDir, bundleInfo.getPath())));
+            return openEntry(bundleInfo.getPath());
         }
         return null;
     }
 
+    /**
+     * Determines the digest of a bundle from the package index, indices written before digests were recorded
+     * fall back to the manifest or to hashing the stored bundle.
+     */
+    public String getBundleDigest(String symbolicName) {
+        BundleInfoImpl bundleInfo = getBundleInfoByName(symbolicName);
+        if (bundleInfo == null) {
+            return null;
+        }
+        String digest = m_entries.getAttribute(bundleInfo.getPath(), PackageIndex.SHA256);
+        if (digest == null) {
+            digest = super.getBundleDigest(symbolicName);
+        }
+        if (digest == null) {
+            try {
+                digest = BlobStore.digest(getBundleStream(symbolicName));
+            }
+            catch (IOException e) {
+                // treat it as unknown
+            }
+        }
+        return digest;
+    }
+
     public ResourceInfoImpl[] getOrderedResourceInfos() {
         List result = new ArrayList();
         for(Iterator i = m_index.iterator(); i.hasNext();) {
@@ -71,6 +132,31 @@ class FileDeploymentPackage extends AbstractDeploymentPackage {
         return (ResourceInfoImpl[]) result.toArray(new ResourceInfoImpl[result.size()]);
     }
 
+    /**
+     * @return The index of this deployment package.
+     */
+    protected PackageIndex getIndex() {
+        return m_entries;
+    }
+
+    /**
+     * @return List containing the paths of all entries except the manifest, in the order they were received.
+     */
+    protected List getEntryPaths() {
+        return m_index;
+    }
+
+    /**
+     * Opens an entry of this deployment package.
+     *
+     * @param path Path of the entry.
+     * @return Stream containing the data of the entry.
+     * @throws IOException If the entry could not be opened.
+     */
+    protected InputStream openEntry(String path) throws IOException {
+        return m_entries.open(path, m_contentsDir, m_store);
+    }
+
     public InputStream getCurrentEntryStream() {
         throw new UnsupportedOperationException("Not implemented for file-based deployment package");
     }
@@ -0,0 +1,108 @@
+package de.akquinet.gomobile.deploymentadmin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Deletes directory trees in the background. A tree is moved into the trash directory with a single rename, which
+ * is all the caller waits for, and is deleted afterwards by the thread of the janitor. The trash directory is the
+ * persistent list of pending deletes: whatever is still in it when the janitor starts, because the framework was
+ * stopped or crashed before it was deleted, is deleted again.
+ */
+public class Janitor {
+
+    private static final String TRASH_PREFIX = "trash";
+
+    private final File m_trash;
+    private ExecutorService m_executor;
+
+    /**
+     * Creates an instance of this class.
+     *
+     * @param trash The directory trees are moved to until they are deleted, it must be on the same file system as the
+     * trees that are deleted.
+     */
+    public Janitor(File trash) {
+        m_trash = trash;
+    }
+
+    /**
+     * Starts the thread of the janitor and schedules everything that is left in the trash directory for deletion.
+     */
+    public synchronized void start() {
+        m_executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("DeploymentAdmin - Janitor"));
+        File[] pending = m_trash.listFiles();
+        if (pending != null) {
+            for (int i = 0; i < pending.length; i++) {
+                schedule(pending[i]);
+            }
+        }
+    }
+
+    /**
+     * Stops the thread of the janitor, deletes that are still pending are done the next time the janitor starts.
+     */
+    public synchronized void stop() {
+        if (m_executor != null) {
+            m_executor.shutdown();
+            m_executor = null;
+        }
+    }
+
+    /**
+     * Deletes a file or directory tree. The tree is gone from its location when this method returns, but the actual
+     * delete may happen later. Trees that can not be moved to the trash directory are deleted right away.
+     *
+     * @param target The file or directory to delete.
+     */
+    public void delete(File target) {
+        if (!target.exists()) {
+            return;
+        }
+        File trashed = null;
+        try {
+            m_trash.mkdirs();
+            trashed = File.createTempFile(TRASH_PREFIX, "", m_trash);
+            trashed.delete();
+        }
+        catch (IOException e) {
+            trashed = null;
+        }
+        if (trashed != null && target.renameTo(trashed)) {
+            schedule(trashed);
+        }
+        else {
+            deleteTree(target);
+        }
+    }
+
+    private synchronized void schedule(final File trashed) {
+        if (m_executor == null) {
+            // not running, it is deleted when the janitor starts again
+            return;
+        }
+        try {
+            m_executor.execute(new Runnable() {
+                public void run() {
+                    deleteTree(trashed);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // shutting down, it is deleted when the janitor starts again
+        }
+    }
+
+    private static void deleteTree(File root) {
+        if (root.isDirectory()) {
+            File[] childs = root.listFiles();
+            for (int i = 0; i < childs.length; i++) {
+                deleteTree(childs[i]);
+            }
+        }
+        root.delete();
+    }
+}
@@ -0,0 +1,28 @@
+package de.akquinet.gomobile.deploymentadmin;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the daemon threads of the executors owned by the deployment admin, the threads are numbered
+ * so they can be told apart in thread dumps.
+ */
+class NamedThreadFactory implements ThreadFactory {
+
+    private final String m_name;
+    private int m_count;
+
+    /**
+     * Creates an instance of this class.
+     *
+     * @param name The prefix of the names of the created threads.
+     */
+    public NamedThreadFactory(String name) {
+        m_name = name;
+    }
+
+    public synchronized Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, m_name + " " + (++m_count));
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,235 @@
+package de.akquinet.gomobile.deploymentadmin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the deployment packages owning each bundle, used when bundles may be shared between deployment packages.
+ * All operations take constant time. Every change is appended to a journal, when the index is loaded the journal is
+ * replayed on top of the last snapshot of the index and the result becomes the new snapshot.
+ * <p>
+ * The snapshot has a line for every bundle holding its symbolic name followed by the names of its owners, the journal
+ * has a line for every change holding <code>+</code> or <code>-</code>, the symbolic name of the bundle and the name of
+ * the owner. All values are separated by tabs.
+ */
+class OwnershipIndex {
+
+    private static final char SEPARATOR = '\t';
+    private static final String ADD = "+";
+    private static final String REMOVE = "-";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAX_JOURNAL_SIZE = 1000;
+
+    private final File m_file;
+    private final File m_journalFile;
+    private final Map/*String -> Set<String>*/ m_owners = new HashMap();
+    private PrintWriter m_journal;
+    private int m_journalSize;
+
+    /**
+     * Creates an instance of this class.
+     *
+     * @param file The snapshot file of the index, the journal is kept next to it.
+     */
+    public OwnershipIndex(File file) {
+        m_file = file;
+        m_journalFile = new File(file.getPath() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Loads the index from disk.
+     *
+     * @return <code>false</code> if there is no index on disk yet, the index is empty in that case.
+     * @throws IOException If the index could not be read or compacted.
+     */
+    public synchronized boolean load() throws IOException {
+        m_owners.clear();
+        boolean exists = m_file.exists() || m_journalFile.exists();
+        if (m_file.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(m_file), "UTF-8"));
+            try {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    String[] values = split(line);
+                    for (int i = 1; i < values.length; i++) {
+                        apply(ADD, values[0], values[i]);
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+        if (m_journalFile.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(m_journalFile), "UTF-8"));
+            try {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    String[] values = split(line);
+                    // a partially written last line is left over from a crash, the change was never applied
+                    if (values.length == 3) {
+                        apply(values[0], values[1], values[2]);
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+        compact();
+        return exists;
+    }
+
+    /**
+     * Closes the journal, further changes are not persisted.
+     */
+    public synchronized void close() {
+        if (m_journal != null) {
+            m_journal.close();
+            m_journal = null;
+        }
+    }
+
+    /**
+     * Adds an owner to a bundle.
+     *
+     * @param symbolicName The symbolic name of the bundle.
+     * @param owner The name of the owning deployment package.
+     * @return <code>true</code> if the package did not own the bundle yet.
+     */
+    public synchronized boolean add(String symbolicName, String owner) {
+        if (isOwner(symbolicName, owner)) {
+            return false;
+        }
+        apply(ADD, symbolicName, owner);
+        journal(ADD, symbolicName, owner);
+        return true;
+    }
+
+    /**
+     * Removes an owner from a bundle.
+     *
+     * @param symbolicName The symbolic name of the bundle.
+     * @param owner The name of the owning deployment package.
+     * @return <code>true</code> if the package owned the bundle.
+     */
+    public synchronized boolean remove(String symbolicName, String owner) {
+        if (!isOwner(symbolicName, owner)) {
+            return false;
+        }
+        apply(REMOVE, symbolicName, owner);
+        journal(REMOVE, symbolicName, owner);
+        return true;
+    }
+
+    /**
+     * @param symbolicName The symbolic name of the bundle.
+     * @param owner The name of a deployment package.
+     * @return <code>true</code> if the package owns the bundle.
+     */
+    public synchronized boolean isOwner(String symbolicName, String owner) {
+        Set owners = (Set) m_owners.get(symbolicName);
+        return owners != null && owners.contains(owner);
+    }
+
+    /**
+     * @param symbolicName The symbolic name of the bundle.
+     * @return The number of deployment packages owning the bundle.
+     */
+    public synchronized int count(String symbolicName) {
+        Set owners = (Set) m_owners.get(symbolicName);
+        return (owners == null) ? 0 : owners.size();
+    }
+
+    /**
+     * @param symbolicName The symbolic name of the bundle.
+     * @return <code>Set</code> containing the names of the deployment packages owning the bundle.
+     */
+    public synchronized Set getOwners(String symbolicName) {
+        Set owners = (Set) m_owners.get(symbolicName);
+        return (owners == null) ? new LinkedHashSet() : new LinkedHashSet(owners);
+    }
+
+    private boolean apply(String operation, String symbolicName, String owner) {
+        Set owners = (Set) m_owners.get(symbolicName);
+        if (ADD.equals(operation)) {
+            if (owners == null) {
+                owners = new LinkedHashSet();
+                m_owners.put(symbolicName, owners);
+            }
+            return owners.add(owner);
+        }
+        if (owners == null || !owners.remove(owner)) {
+            return false;
+        }
+        if (owners.isEmpty()) {
+            m_owners.remove(symbolicName);
+        }
+        return true;
+    }
+
+    private void journal(String operation, String symbolicName, String owner) {
+        if (m_journal == null) {
+            return;
+        }
+        m_journal.println(operation + SEPARATOR + symbolicName + SEPARATOR + owner);
+        m_journal.flush();
+        if (++m_journalSize >= MAX_JOURNAL_SIZE) {
+            try {
+                compact();
+            }
+            catch (IOException e) {
+                // keep appending to the journal, it is compacted when the index is loaded again
+            }
+        }
+    }
+
+    /**
+     * Writes the current state as the new snapshot and starts an empty journal.
+     */
+    private void compact() throws IOException {
+        File temp = new File(m_file.getPath() + TEMP_SUFFIX);
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+        try {
+            for (Iterator i = m_owners.entrySet().iterator(); i.hasNext();) {
+                Map.Entry entry = (Map.Entry) i.next();
+                StringBuffer line = new StringBuffer((String) entry.getKey());
+                for (Iterator j = ((Set) entry.getValue()).iterator(); j.hasNext();) {
+                    line.append(SEPARATOR).append(j.next());
+                }
+                writer.println(line);
+            }
+            if (writer.checkError()) {
+                throw new IOException("Could not write " + temp.getAbsolutePath());
+            }
+        }
+        finally {
+            writer.close();
+        }
+        // replaying the journal on top of the new snapshot does not change it, so the journal is deleted last
+        if (!temp.renameTo(m_file)) {
+            m_file.delete();
+            if (!temp.renameTo(m_file)) {
+                throw new IOException("Could not write " + m_file.getAbsolutePath());
+            }
+        }
+        close();
+        m_journalFile.delete();
+        m_journal = new PrintWriter(new OutputStreamWriter(new FileOutputStream(m_journalFile, true), "UTF-8"));
+        m_journalSize = 0;
+    }
+
+    private static String[] split(String line) {
+        return line.split(String.valueOf(SEPARATOR));
+    }
+}
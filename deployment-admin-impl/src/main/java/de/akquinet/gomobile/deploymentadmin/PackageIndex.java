@@ -0,0 +1,250 @@
+package de.akquinet.gomobile.deploymentadmin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The index of a deployment package stored on disk. It lists the entries of the package in the order they were
+ * received, together with a set of attributes for every entry. Each entry is written on a line of its own, the
+ * path is followed by the attributes in <code>key=value</code> form, separated by tabs. Tabs are not allowed
+ * in resource paths, lines of indices written before attributes were recorded consist of the path only.
+ */
+public class PackageIndex {
+
+    /**
+     * Attribute holding the name of the <code>StorageCodec</code> an entry was stored with.
+     */
+    public static final String CODEC = "codec";
+
+    /**
+     * Attribute holding the SHA-256 digest of an entry, entries with this attribute are kept in the
+     * <code>BlobStore</code>. Entries without it are stored in the contents directory of their package.
+     */
+    public static final String SHA256 = "sha256";
+
+    private static final char SEPARATOR = '\t';
+
+    private final Map/*String -> Map<String, String>*/ m_entries = new LinkedHashMap();
+
+    /**
+     * Reads an index from disk.
+     *
+     * @param index The index file.
+     * @return The index.
+     * @throws IOException If the file could not be read.
+     */
+    public static PackageIndex read(File index) throws IOException {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(index));
+            PackageIndex result = new PackageIndex();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                result.parse(line);
+            }
+            return result;
+        }
+        finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                }
+                catch (IOException e) {
+                    // Not much we can do
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates an index from the lines of an index file.
+     *
+     * @param lines <code>List</code> containing the lines, as written by <code>format(String)</code>.
+     * @return The index.
+     */
+    public static PackageIndex fromLines(List lines) {
+        PackageIndex result = new PackageIndex();
+        for (Iterator i = lines.iterator(); i.hasNext();) {
+            result.parse((String) i.next());
+        }
+        return result;
+    }
+
+    /**
+     * Writes this index to disk.
+     *
+     * @param index The index file.
+     * @throws IOException If the file could not be written.
+     */
+    public void write(File index) throws IOException {
+        PrintWriter writer = null;
+        try {
+            writer = new PrintWriter(new FileWriter(index));
+            for (Iterator i = m_entries.keySet().iterator(); i.hasNext();) {
+                writer.println(format((String) i.next()));
+            }
+            if (writer.checkError()) {
+                throw new IOException("Could not write index file: " + index.getAbsolutePath());
+            }
+        }
+        finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * Formats an entry as it is written to the index file.
+     *
+     * @param path Path of the entry.
+     * @return The line describing the entry.
+     */
+    public String format(String path) {
+        StringBuffer line = new StringBuffer(path);
+        Map attributes = (Map) m_entries.get(path);
+        if (attributes != null) {
+            for (Iterator i = attributes.entrySet().iterator(); i.hasNext();) {
+                Map.Entry attribute = (Map.Entry) i.next();
+                line.append(SEPARATOR).append(attribute.getKey()).append('=').append(attribute.getValue());
+            }
+        }
+        return line.toString();
+    }
+
+    private void parse(String line) {
+        int start = line.indexOf(SEPARATOR);
+        if (start == -1) {
+            add(line);
+            return;
+        }
+        String path = line.substring(0, start);
+        add(path);
+        while (start != -1) {
+            int end = line.indexOf(SEPARATOR, start + 1);
+            String attribute = (end == -1) ? line.substring(start + 1) : line.substring(start + 1, end);
+            int equals = attribute.indexOf('=');
+            if (equals > 0) {
+                setAttribute(path, attribute.substring(0, equals), attribute.substring(equals + 1));
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Adds an entry to the end of this index, if the entry is already present it keeps its position.
+     *
+     * @param path Path of the entry.
+     */
+    public void add(String path) {
+        if (!m_entries.containsKey(path)) {
+            m_entries.put(path, new LinkedHashMap());
+        }
+    }
+
+    /**
+     * Adds an entry of another index to this index, the attributes of the entry are copied as well.
+     * If the entry is already present it keeps its position but gets the attributes from the other index.
+     *
+     * @param path Path of the entry.
+     * @param other The index to copy the attributes from.
+     */
+    public void add(String path, PackageIndex other) {
+        Map attributes = (Map) other.m_entries.get(path);
+        m_entries.put(path, (attributes == null) ? new LinkedHashMap() : new LinkedHashMap(attributes));
+    }
+
+    /**
+     * Removes an entry from this index.
+     *
+     * @param path Path of the entry.
+     */
+    public void remove(String path) {
+        m_entries.remove(path);
+    }
+
+    /**
+     * @param path Path of the entry.
+     * @return True if the index contains an entry with the specified path.
+     */
+    public boolean contains(String path) {
+        return m_entries.containsKey(path);
+    }
+
+    /**
+     * @return List containing the paths of all entries in the order they appear in the index.
+     */
+    public List getPaths() {
+        return new ArrayList(m_entries.keySet());
+    }
+
+    /**
+     * Sets an attribute of an entry, the entry is added if it is not yet present.
+     *
+     * @param path Path of the entry.
+     * @param key Name of the attribute.
+     * @param value Value of the attribute.
+     */
+    public void setAttribute(String path, String key, String value) {
+        add(path);
+        ((Map) m_entries.get(path)).put(key, value);
+    }
+
+    /**
+     * @param path Path of the entry.
+     * @param key Name of the attribute.
+     * @return The value of the attribute or <code>null</code> if the entry or attribute is not present.
+     */
+    public String getAttribute(String path, String key) {
+        Map attributes = (Map) m_entries.get(path);
+        return (attributes == null) ? null : (String) attributes.get(key);
+    }
+
+    /**
+     * Determines the codec an entry was stored with.
+     *
+     * @param path Path of the entry.
+     * @return The codec.
+     * @throws IOException If the recorded codec is unknown.
+     */
+    public StorageCodec getCodec(String path) throws IOException {
+        return StorageCodec.forName(getAttribute(path, CODEC));
+    }
+
+    /**
+     * Determines the file holding the data of an entry.
+     *
+     * @param path Path of the entry.
+     * @param contentsDir The contents directory of the package, used for entries that are not in the blob store.
+     * @param store The blob store.
+     * @return The file, its data is encoded with the codec of the entry.
+     */
+    public File getFile(String path, File contentsDir, BlobStore store) {
+        String key = getAttribute(path, SHA256);
+        return (key == null) ? new File(contentsDir, path) : store.getFile(key);
+    }
+
+    /**
+     * Opens an entry for reading.
+     *
+     * @param path Path of the entry.
+     * @param contentsDir The contents directory of the package, used for entries that are not in the blob store.
+     * @param store The blob store.
+     * @return Stream containing the decoded data of the entry.
+     * @throws IOException If the entry could not be opened.
+     */
+    public InputStream open(String path, File contentsDir, BlobStore store) throws IOException {
+        StorageCodec codec = getCodec(path);
+        return codec.decode(new FileInputStream(getFile(path, contentsDir, store)));
+    }
+}
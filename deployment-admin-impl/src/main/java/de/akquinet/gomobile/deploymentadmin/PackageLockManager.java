@@ -0,0 +1,122 @@
+package de.akquinet.gomobile.deploymentadmin;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Grants exclusive access to the deployment packages and bundles touched by a deployment session. Every
+ * session locks the symbolic name of its deployment package together with the symbolic names of all
+ * bundles and the PIDs of all resource processors it may use. Sessions whose key sets are disjoint can
+ * run concurrently, a session that overlaps with a running session blocks until the latter released
+ * its lock.
+ */
+public class PackageLockManager {
+
+    private static final String PACKAGE_KEY = "package:";
+    private static final String BUNDLE_KEY = "bundle:";
+    private static final String PROCESSOR_KEY = "processor:";
+
+    private final Map/*String -> Lock*/ m_locked = new HashMap();
+
+    /**
+     * Tries to lock the specified deployment package, bundles and resource processors and waits for the
+     * duration of the specified timeout until none of them is held by another session.
+     *
+     * @param packageName Symbolic name of the deployment package.
+     * @param bundles Symbolic names of the bundles the session may install, update or uninstall.
+     * @param processors PIDs of the resource processors the session may use.
+     * @param timeout The number of milliseconds to wait.
+     * @return The acquired lock or <code>null</code> if it could not be acquired within the specified amount of time.
+     * @throws InterruptedException when the thread is interrupted
+     */
+    public Lock tryAcquire(String packageName, Collection bundles, Collection processors, long timeout) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        Lock lock = new Lock(packageName);
+        lock.m_keys.add(PACKAGE_KEY + packageName);
+        addKeys(lock.m_keys, BUNDLE_KEY, bundles);
+        addKeys(lock.m_keys, PROCESSOR_KEY, processors);
+
+        synchronized (this) {
+            long startTime = System.currentTimeMillis();
+            long remaining = timeout;
+            while (isConflicting(lock)) {
+                if (remaining <= 0) {
+                    return null;
+                }
+                wait(remaining);
+                remaining = timeout - (System.currentTimeMillis() - startTime);
+            }
+            for (Iterator i = lock.m_keys.iterator(); i.hasNext();) {
+                m_locked.put(i.next(), lock);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * Releases a lock that was acquired earlier. All sessions waiting for one of the keys held by the lock are
+     * notified.
+     *
+     * @param lock The lock to release, <code>null</code> is ignored.
+     */
+    public synchronized void release(Lock lock) {
+        if (lock == null) {
+            return;
+        }
+        for (Iterator i = lock.m_keys.iterator(); i.hasNext();) {
+            Object key = i.next();
+            if (m_locked.get(key) == lock) {
+                m_locked.remove(key);
+            }
+        }
+        lock.m_keys.clear();
+        notifyAll();
+    }
+
+    private boolean isConflicting(Lock lock) {
+        for (Iterator i = lock.m_keys.iterator(); i.hasNext();) {
+            if (m_locked.containsKey(i.next())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addKeys(Set keys, String prefix, Collection names) {
+        if (names == null) {
+            return;
+        }
+        for (Iterator i = names.iterator(); i.hasNext();) {
+            Object name = i.next();
+            if (name != null) {
+                keys.add(prefix + name);
+            }
+        }
+    }
+
+    /**
+     * Represents the keys held by a single deployment session.
+     */
+    public static final class Lock {
+
+        private final String m_packageName;
+        private final Set m_keys = new HashSet();
+
+        private Lock(String packageName) {
+            m_packageName = packageName;
+        }
+
+        /**
+         * @return The symbolic name of the deployment package this lock was acquired for.
+         */
+        public String getPackageName() {
+            return m_packageName;
+        }
+    }
+}
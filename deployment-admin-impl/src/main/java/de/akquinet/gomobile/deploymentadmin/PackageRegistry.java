@@ -0,0 +1,314 @@
+package de.akquinet.gomobile.deploymentadmin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+
+/**
+ * Binary registry of the installed deployment packages, it allows the deployment admin to start without reading the
+ * index and manifest of every package from the package directory. For every package the registry holds the lines of
+ * its index and the headers of its manifest, already decoded.
+ * <p>
+ * The registry is written when the deployment admin stops and is only trusted if it was written after the last start:
+ * loading it creates a marker that writing it removes, a registry found next to a marker is stale because the
+ * framework did not stop properly. The file is read with a single read into memory, manifests are only decoded when
+ * their package is used. It is not memory mapped: the registry is small and read once, and a mapping would keep the
+ * file from being replaced on some platforms for as long as the manifests of the packages are referenced.
+ * <p>
+ * The file starts with a magic number, the format version, the length of the body and a CRC32 checksum of the body.
+ * Strings in the body are written as their length followed by their UTF-8 bytes.
+ */
+class PackageRegistry {
+
+    private static final int MAGIC = 0x44505247;
+    private static final int VERSION = 1;
+    private static final String DIRTY_SUFFIX = ".dirty";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File m_file;
+    private final File m_dirty;
+
+    /**
+     * Creates an instance of this class.
+     *
+     * @param file The registry file.
+     */
+    public PackageRegistry(File file) {
+        m_file = file;
+        m_dirty = new File(file.getPath() + DIRTY_SUFFIX);
+    }
+
+    /**
+     * Loads the registry and marks it as stale until it is written again.
+     *
+     * @return <code>List</code> containing an <code>Entry</code> for every registered package or <code>null</code> if
+     * the registry is missing, stale or corrupt.
+     */
+    public List load() {
+        List result = null;
+        if (m_file.isFile() && !m_dirty.exists()) {
+            try {
+                result = read();
+            }
+            catch (IOException e) {
+                result = null;
+            }
+        }
+        invalidate();
+        return result;
+    }
+
+    /**
+     * Marks the registry as stale, this has to be done before the installed packages on disk are changed. If the
+     * marker can not be created the registry is deleted.
+     */
+    public void invalidate() {
+        if (m_dirty.exists()) {
+            return;
+        }
+        try {
+            if (m_dirty.createNewFile()) {
+                return;
+            }
+        }
+        catch (IOException e) {
+            // fall through
+        }
+        m_file.delete();
+    }
+
+    private List read() throws IOException {
+        long size = m_file.length();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Package registry is corrupt");
+        }
+        byte[] data = new byte[(int) size];
+        DataInputStream input = new DataInputStream(new FileInputStream(m_file));
+        try {
+            input.readFully(data);
+        }
+        catch (EOFException e) {
+            throw new IOException("Package registry is truncated");
+        }
+        finally {
+            input.close();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a package registry or unsupported version");
+            }
+            int length = buffer.getInt();
+            long checksum = buffer.getLong();
+            if (length != buffer.remaining()) {
+                throw new IOException("Package registry is truncated");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, buffer.position(), length);
+            if (crc.getValue() != checksum) {
+                throw new IOException("Package registry is corrupt");
+            }
+            List result = new ArrayList();
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                String name = getString(buffer);
+                int lines = buffer.getInt();
+                List index = new ArrayList(lines);
+                for (int j = 0; j < lines; j++) {
+                    index.add(getString(buffer));
+                }
+                int manifestLength = buffer.getInt();
+                ByteBuffer manifest = buffer.slice();
+                manifest.limit(manifestLength);
+                buffer.position(buffer.position() + manifestLength);
+                result.add(new Entry(name, PackageIndex.fromLines(index), manifest));
+            }
+            return result;
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("Package registry is truncated");
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Package registry is corrupt");
+        }
+    }
+
+    /**
+     * Writes the registry and marks it as up to date.
+     *
+     * @param entries <code>List</code> containing an <code>Entry</code> for every installed package.
+     * @throws IOException If the registry could not be written.
+     */
+    public void write(List entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bytes);
+        body.writeInt(entries.size());
+        for (Iterator i = entries.iterator(); i.hasNext();) {
+            Entry entry = (Entry) i.next();
+            putString(body, entry.m_name);
+            List paths = entry.m_index.getPaths();
+            body.writeInt(paths.size());
+            for (Iterator j = paths.iterator(); j.hasNext();) {
+                putString(body, entry.m_index.format((String) j.next()));
+            }
+            ByteBuffer manifest = entry.m_manifest.duplicate();
+            manifest.rewind();
+            byte[] data = new byte[manifest.remaining()];
+            manifest.get(data);
+            body.writeInt(data.length);
+            body.write(data);
+        }
+        body.flush();
+        byte[] data = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        File temp = new File(m_file.getPath() + TEMP_SUFFIX);
+        DataOutputStream output = new DataOutputStream(new FileOutputStream(temp));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(data.length);
+            output.writeLong(crc.getValue());
+            output.write(data);
+        }
+        finally {
+            output.close();
+        }
+        m_file.delete();
+        if (!temp.renameTo(m_file)) {
+            temp.delete();
+            throw new IOException("Could not write " + m_file.getAbsolutePath());
+        }
+        m_dirty.delete();
+    }
+
+    /**
+     * Creates the entry of an installed package.
+     *
+     * @param name The symbolic name of the package.
+     * @param index The index of the package.
+     * @param manifest The manifest of the package.
+     * @return The entry.
+     * @throws IOException If the manifest could not be encoded.
+     */
+    public static Entry createEntry(String name, PackageIndex index, Manifest manifest) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        putAttributes(output, manifest.getMainAttributes());
+        Map sections = manifest.getEntries();
+        output.writeInt(sections.size());
+        for (Iterator i = sections.entrySet().iterator(); i.hasNext();) {
+            Map.Entry section = (Map.Entry) i.next();
+            putString(output, (String) section.getKey());
+            putAttributes(output, (Attributes) section.getValue());
+        }
+        output.flush();
+        return new Entry(name, index, ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    private static void putAttributes(DataOutputStream output, Attributes attributes) throws IOException {
+        output.writeInt(attributes.size());
+        for (Iterator i = attributes.entrySet().iterator(); i.hasNext();) {
+            Map.Entry attribute = (Map.Entry) i.next();
+            putString(output, attribute.getKey().toString());
+            putString(output, (String) attribute.getValue());
+        }
+    }
+
+    private static void putString(DataOutputStream output, String value) throws IOException {
+        byte[] data = value.getBytes("UTF-8");
+        output.writeInt(data.length);
+        output.write(data);
+    }
+
+    private static String getString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Package registry is corrupt");
+        }
+        byte[] data = new byte[length];
+        buffer.get(data);
+        return new String(data, "UTF-8");
+    }
+
+    private static void getAttributes(ByteBuffer buffer, Attributes attributes) throws IOException {
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            attributes.putValue(getString(buffer), getString(buffer));
+        }
+    }
+
+    /**
+     * A package in the registry.
+     */
+    public static final class Entry {
+
+        private final String m_name;
+        private final PackageIndex m_index;
+        private final ByteBuffer m_manifest;
+
+        private Entry(String name, PackageIndex index, ByteBuffer manifest) {
+            m_name = name;
+            m_index = index;
+            m_manifest = manifest;
+        }
+
+        /**
+         * @return The symbolic name of the package.
+         */
+        public String getName() {
+            return m_name;
+        }
+
+        /**
+         * @return The index of the package.
+         */
+        public PackageIndex getIndex() {
+            return m_index;
+        }
+
+        /**
+         * Decodes the manifest of the package.
+         *
+         * @return The manifest.
+         * @throws IOException If the registry is corrupt.
+         */
+        public Manifest getManifest() throws IOException {
+            ByteBuffer buffer = m_manifest.duplicate();
+            buffer.rewind();
+            try {
+                Manifest manifest = new Manifest();
+                getAttributes(buffer, manifest.getMainAttributes());
+                int sections = buffer.getInt();
+                for (int i = 0; i < sections; i++) {
+                    String name = getString(buffer);
+                    Attributes attributes = new Attributes();
+                    getAttributes(buffer, attributes);
+                    manifest.getEntries().put(name, attributes);
+                }
+                return manifest;
+            }
+            catch (BufferUnderflowException e) {
+                throw new IOException("Package registry is corrupt");
+            }
+            catch (IllegalArgumentException e) {
+                throw new IOException("Package registry is corrupt");
+            }
+        }
+    }
+}
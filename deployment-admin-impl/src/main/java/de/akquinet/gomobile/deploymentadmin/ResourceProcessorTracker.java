@@ -0,0 +1,90 @@
+package de.akquinet.gomobile.deploymentadmin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.deploymentadmin.spi.ResourceProcessor;
+import org.osgi.util.tracker.ServiceTracker;
+
+/**
+ * Tracks the registered resource processors by their PID, so the processor of a resource is found without querying
+ * the service registry. The services themselves are not retrieved by the tracker.
+ */
+public class ResourceProcessorTracker extends ServiceTracker {
+
+    private final Map/*String -> List<ServiceReference>*/ m_references = new ConcurrentHashMap();
+
+    /**
+     * Creates an instance of this class.
+     *
+     * @param context The bundle context used to track the resource processors.
+     */
+    public ResourceProcessorTracker(BundleContext context) {
+        super(context, ResourceProcessor.class.getName(), null);
+    }
+
+    /**
+     * Determines the resource processor with a PID.
+     *
+     * @param pid The PID of the resource processor.
+     * @return Reference to the resource processor or <code>null</code> if none is registered with the PID.
+     */
+    public ServiceReference getReference(String pid) {
+        List references = (List) m_references.get(pid);
+        if (references == null) {
+            return null;
+        }
+        synchronized (references) {
+            return references.isEmpty() ? null : (ServiceReference) references.get(0);
+        }
+    }
+
+    public Object addingService(ServiceReference reference) {
+        index(reference);
+        return reference;
+    }
+
+    public void modifiedService(ServiceReference reference, Object service) {
+        // the PID may have changed
+        unindex(reference);
+        index(reference);
+    }
+
+    public void removedService(ServiceReference reference, Object service) {
+        unindex(reference);
+    }
+
+    private synchronized void index(ServiceReference reference) {
+        Object pid = reference.getProperty(org.osgi.framework.Constants.SERVICE_PID);
+        if (!(pid instanceof String)) {
+            return;
+        }
+        List references = (List) m_references.get(pid);
+        if (references == null) {
+            references = new ArrayList();
+            m_references.put(pid, references);
+        }
+        synchronized (references) {
+            references.add(reference);
+        }
+    }
+
+    private synchronized void unindex(ServiceReference reference) {
+        Object[] pids = m_references.keySet().toArray();
+        for (int i = 0; i < pids.length; i++) {
+            List references = (List) m_references.get(pids[i]);
+            boolean empty;
+            synchronized (references) {
+                references.remove(reference);
+                empty = references.isEmpty();
+            }
+            if (empty) {
+                m_references.remove(pids[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package de.akquinet.gomobile.deploymentadmin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Bounded pipe between a thread writing data and a thread reading it. The data is kept in a ring buffer that is
+ * copied in bulk, the writer blocks while the buffer is full and the reader blocks while it is empty. Closing the
+ * output signals the end of the stream to the reader. Once the reader closed its side, everything that is still
+ * written is discarded so the writer can finish consuming its own source. A reader that fails breaks the pipe
+ * instead, every following write throws the failure so the writer does not go on as if its data was consumed.
+ */
+class RingBufferPipe {
+
+    private final byte[] m_buffer;
+    private final InputStream m_input = new PipeInputStream();
+    private final OutputStream m_output = new PipeOutputStream();
+
+    private int m_readPos;
+    private int m_count;
+    private boolean m_writerClosed;
+    private boolean m_readerClosed;
+    private IOException m_failure;
+
+    /**
+     * Creates an instance of this class.
+     *
+     * @param size The number of bytes the pipe can hold before the writer blocks.
+     */
+    public RingBufferPipe(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Pipe size must be positive: " + size);
+        }
+        m_buffer = new byte[size];
+    }
+
+    /**
+     * @return The stream the reading thread consumes.
+     */
+    public InputStream getInputStream() {
+        return m_input;
+    }
+
+    /**
+     * @return The stream the writing thread fills.
+     */
+    public OutputStream getOutputStream() {
+        return m_output;
+    }
+
+    /**
+     * Breaks the pipe on behalf of the reader, the reading side is closed and every following write throws.
+     *
+     * @param failure The reason the reader could not consume the data.
+     */
+    public synchronized void fail(IOException failure) {
+        m_failure = failure;
+        closeReader();
+    }
+
+    private synchronized void write(byte[] data, int off, int len) throws IOException {
+        if (m_writerClosed) {
+            throw new IOException("Pipe is closed");
+        }
+        while (len > 0) {
+            while (m_count == m_buffer.length && !m_readerClosed) {
+                await();
+            }
+            if (m_failure != null) {
+                IOException e = new IOException("Pipe is broken: " + m_failure.getMessage());
+                e.initCause(m_failure);
+                throw e;
+            }
+            if (m_readerClosed) {
+                return;
+            }
+            int writePos = (m_readPos + m_count) % m_buffer.length;
+            int chunk = Math.min(len, Math.min(m_buffer.length - m_count, m_buffer.length - writePos));
+            System.arraycopy(data, off, m_buffer, writePos, chunk);
+            m_count += chunk;
+            off += chunk;
+            len -= chunk;
+            notifyAll();
+        }
+    }
+
+    private synchronized int read(byte[] data, int off, int len) throws IOException {
+        if (m_readerClosed) {
+            throw new IOException("Pipe is closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (m_count == 0) {
+            if (m_writerClosed) {
+                return -1;
+            }
+            await();
+            if (m_readerClosed) {
+                throw new IOException("Pipe is closed");
+            }
+        }
+        int result = 0;
+        // copy both parts if the data wraps around the end of the buffer
+        while (m_count > 0 && result < len) {
+            int chunk = Math.min(len - result, Math.min(m_count, m_buffer.length - m_readPos));
+            System.arraycopy(m_buffer, m_readPos, data, off + result, chunk);
+            m_readPos = (m_readPos + chunk) % m_buffer.length;
+            m_count -= chunk;
+            result += chunk;
+        }
+        notifyAll();
+        return result;
+    }
+
+    private synchronized int available() {
+        return m_count;
+    }
+
+    private synchronized void closeWriter() {
+        m_writerClosed = true;
+        notifyAll();
+    }
+
+    private synchronized void closeReader() {
+        m_readerClosed = true;
+        m_count = 0;
+        notifyAll();
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting on pipe");
+        }
+    }
+
+    private final class PipeInputStream extends InputStream {
+
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return (RingBufferPipe.this.read(single, 0, 1) == -1) ? -1 : (single[0] & 0xff);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            return RingBufferPipe.this.read(b, off, len);
+        }
+
+        public int available() {
+            return RingBufferPipe.this.available();
+        }
+
+        public void close() {
+            closeReader();
+        }
+    }
+
+    private final class PipeOutputStream extends OutputStream {
+
+        public void write(int b) throws IOException {
+            RingBufferPipe.this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            RingBufferPipe.this.write(b, off, len);
+        }
+
+        public void close() {
+            closeWriter();
+        }
+    }
+}
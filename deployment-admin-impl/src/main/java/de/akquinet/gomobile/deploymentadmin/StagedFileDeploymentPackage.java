@@ -0,0 +1,126 @@
+package de.akquinet.gomobile.deploymentadmin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.service.deploymentadmin.DeploymentException;
+
+import de.akquinet.gomobile.deploymentadmin.api.StagedDeploymentPackage;
+
+/**
+ * A deployment package that was staged on disk. Unlike an installed <code>FileDeploymentPackage</code> it can be
+ * iterated entry by entry, which allows a deployment session to install it exactly like a package read from a stream.
+ */
+class StagedFileDeploymentPackage extends FileDeploymentPackage implements StagedDeploymentPackage {
+
+    private final String m_id;
+    private final File m_packageDir;
+    private int m_position = -1;
+    private InputStream m_current;
+
+    /**
+     * Creates an instance of this class.
+     *
+     * @param packageDir The directory holding the index and contents of the staged package, its name is used as identifier.
+     * @param bundleContext The bundle context
+     * @param admin The deployment admin
+     * @throws DeploymentException Thrown if the disk contents do not resemble a valid deployment package.
+     * @throws IOException Thrown if there was a problem reading the resources from disk.
+     */
+    public StagedFileDeploymentPackage(File packageDir, BundleContext bundleContext, DeploymentAdminImpl admin) throws DeploymentException, IOException {
+        super(new File(packageDir, DeploymentAdminImpl.PACKAGEINDEX_FILE), new File(packageDir, DeploymentAdminImpl.PACKAGECONTENTS_DIR), bundleContext, admin);
+        m_id = packageDir.getName();
+        m_packageDir = packageDir;
+    }
+
+    public String getId() {
+        return m_id;
+    }
+
+    /**
+     * @return The directory holding the index and contents of the staged package.
+     */
+    public File getPackageDir() {
+        return m_packageDir;
+    }
+
+    /**
+     * Verifies that all resources declared in the manifest were received and that their content matches the digest
+     * declared in the manifest.
+     *
+     * @throws DeploymentException If a resource is missing or its digest does not match.
+     */
+    public void verify() throws DeploymentException {
+        PackageIndex index = getIndex();
+        AbstractInfo[] infos = getBundleInfoImpls();
+        for (int i = 0; i < infos.length; i++) {
+            verify(index, infos[i]);
+        }
+        infos = getResourceInfos();
+        for (int i = 0; i < infos.length; i++) {
+            verify(index, infos[i]);
+        }
+    }
+
+    private void verify(PackageIndex index, AbstractInfo info) throws DeploymentException {
+        if (info.isMissing()) {
+            return;
+        }
+        if (!index.contains(info.getPath())) {
+            throw new DeploymentException(DeploymentException.CODE_MISSING_RESOURCE, "Resource '" + info.getPath() + "' is described in the manifest but was not received");
+        }
+        String expected = info.getDigest();
+        if (expected != null && !expected.equals(index.getAttribute(info.getPath(), PackageIndex.SHA256))) {
+            throw new DeploymentException(DeploymentException.CODE_SIGNING_ERROR, "Digest of resource '" + info.getPath() + "' does not match the manifest");
+        }
+    }
+
+    /**
+     * Restarts the iteration over the entries, a staged package can be activated again if an earlier attempt failed.
+     */
+    public synchronized void reset() {
+        closeCurrent();
+        m_position = -1;
+    }
+
+    public synchronized AbstractInfo getNextEntry() throws IOException {
+        closeCurrent();
+        List paths = getEntryPaths();
+        if (m_position + 1 >= paths.size()) {
+            return null;
+        }
+        m_position++;
+        return getAbstractInfoByPath((String) paths.get(m_position));
+    }
+
+    public synchronized InputStream getCurrentEntryStream() {
+        if (m_position < 0 || m_position >= getEntryPaths().size()) {
+            return null;
+        }
+        if (m_current == null) {
+            try {
+                m_current = openEntry((String) getEntryPaths().get(m_position));
+            }
+            catch (IOException e) {
+                // the consumer sees an empty resource and fails on it
+                return null;
+            }
+        }
+        return new NonCloseableStream(m_current);
+    }
+
+    private void closeCurrent() {
+        if (m_current != null) {
+            try {
+                m_current.close();
+            }
+            catch (IOException e) {
+                // Not much we can do
+            }
+            m_current = null;
+        }
+    }
+}
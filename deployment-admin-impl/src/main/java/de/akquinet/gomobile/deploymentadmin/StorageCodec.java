@@ -0,0 +1,126 @@
+package de.akquinet.gomobile.deploymentadmin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encoding used to store the entries of a deployment package on disk. The name of the codec is recorded for
+ * every entry in the package index, so entries stored with different codecs can be read back.
+ */
+public abstract class StorageCodec {
+
+    /**
+     * Stores entries as they were received.
+     */
+    public static final StorageCodec STORED = new StorageCodec("stored") {
+        public OutputStream encode(OutputStream output) {
+            return output;
+        }
+        public InputStream decode(InputStream input) {
+            return input;
+        }
+    };
+
+    /**
+     * Stores entries in GZIP format, this is how entries were stored before the codec was recorded in the
+     * package index.
+     */
+    public static final StorageCodec GZIP = new StorageCodec("gzip") {
+        public OutputStream encode(OutputStream output) throws IOException {
+            return new GZIPOutputStream(output);
+        }
+        public InputStream decode(InputStream input) throws IOException {
+            return new GZIPInputStream(input);
+        }
+    };
+
+    private static final String DEFLATE_NAME = "deflate";
+
+    private final String m_name;
+
+    private StorageCodec(String name) {
+        m_name = name;
+    }
+
+    /**
+     * Creates a codec that deflates entries with the specified compression level.
+     *
+     * @param level The compression level (0-9).
+     * @return The codec.
+     */
+    public static StorageCodec deflate(final int level) {
+        return new StorageCodec(DEFLATE_NAME) {
+            public OutputStream encode(OutputStream output) {
+                final Deflater deflater = new Deflater(level);
+                return new DeflaterOutputStream(output, deflater) {
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        }
+                        finally {
+                            deflater.end();
+                        }
+                    }
+                };
+            }
+            public InputStream decode(InputStream input) {
+                return new InflaterInputStream(input);
+            }
+        };
+    }
+
+    /**
+     * Determines the codec that can decode entries stored with the codec of the specified name.
+     *
+     * @param name Name of the codec as recorded in the package index, <code>null</code> for entries that were stored without recording a codec.
+     * @return The codec.
+     * @throws IOException If the name does not describe a known codec.
+     */
+    public static StorageCodec forName(String name) throws IOException {
+        if (name == null || GZIP.getName().equals(name)) {
+            return GZIP;
+        }
+        if (STORED.getName().equals(name)) {
+            return STORED;
+        }
+        if (DEFLATE_NAME.equals(name)) {
+            return deflate(Deflater.DEFAULT_COMPRESSION);
+        }
+        throw new IOException("Unknown storage codec '" + name + "'");
+    }
+
+    /**
+     * @return The name of the codec as recorded in the package index.
+     */
+    public String getName() {
+        return m_name;
+    }
+
+    /**
+     * Wraps a stream to which an entry will be written.
+     *
+     * @param output The stream to the file on disk.
+     * @return Stream that encodes all data written to it, closing it closes the specified stream.
+     * @throws IOException If the stream could not be created.
+     */
+    public abstract OutputStream encode(OutputStream output) throws IOException;
+
+    /**
+     * Wraps a stream from which an entry will be read.
+     *
+     * @param input The stream from the file on disk.
+     * @return Stream that decodes the data read from the specified stream.
+     * @throws IOException If the stream could not be created.
+     */
+    public abstract InputStream decode(InputStream input) throws IOException;
+
+    public String toString() {
+        return m_name;
+    }
+}
@@ -0,0 +1,101 @@
+package de.akquinet.gomobile.deploymentadmin;
+
+import java.util.zip.Deflater;
+
+/**
+ * Decides which <code>StorageCodec</code> is used to store an entry of a deployment package. The policy is
+ * configured with the <code>de.akquinet.gomobile.deploymentadmin.storage</code> framework property:
+ * <ul>
+ * <li><code>stored</code> stores all entries as they were received,</li>
+ * <li><code>deflate</code> deflates all entries,</li>
+ * <li><code>auto</code> (default) looks at the first bytes of an entry and only deflates it if it is neither
+ * tiny nor already compressed (like most bundles are).</li>
+ * </ul>
+ * The compression level used for deflating can be set with <code>de.akquinet.gomobile.deploymentadmin.storage.level</code>.
+ */
+public class StoragePolicy {
+
+    public static final String MODE_STORED = "stored";
+    public static final String MODE_DEFLATE = "deflate";
+    public static final String MODE_AUTO = "auto";
+
+    /**
+     * Number of bytes an entry must at least have before deflating it is considered.
+     */
+    private static final int MIN_DEFLATE_SIZE = 512;
+
+    /**
+     * Entropy (in bits per byte) above which the data is considered to be compressed already.
+     */
+    private static final double MAX_DEFLATE_ENTROPY = 7.2;
+
+    private final String m_mode;
+    private final StorageCodec m_deflate;
+
+    /**
+     * Creates an instance of this class.
+     *
+     * @param mode One of <code>stored</code>, <code>deflate</code> or <code>auto</code>, <code>null</code> or an unknown value select <code>auto</code>.
+     * @param level The compression level used for deflating entries (0-9), values outside this range select the default level.
+     */
+    public StoragePolicy(String mode, int level) {
+        if (MODE_STORED.equalsIgnoreCase(mode)) {
+            m_mode = MODE_STORED;
+        } else if (MODE_DEFLATE.equalsIgnoreCase(mode)) {
+            m_mode = MODE_DEFLATE;
+        } else {
+            m_mode = MODE_AUTO;
+        }
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            level = Deflater.DEFAULT_COMPRESSION;
+        }
+        m_deflate = StorageCodec.deflate(level);
+    }
+
+    /**
+     * Selects the codec for an entry.
+     *
+     * @param head Buffer containing the first bytes of the entry.
+     * @param length Number of valid bytes in the buffer.
+     * @param complete <code>true</code> if the buffer contains the complete entry.
+     * @return The codec the entry should be stored with.
+     */
+    public StorageCodec select(byte[] head, int length, boolean complete) {
+        if (m_mode == MODE_STORED) {
+            return StorageCodec.STORED;
+        }
+        if (m_mode == MODE_DEFLATE) {
+            return m_deflate;
+        }
+        if (complete && length < MIN_DEFLATE_SIZE) {
+            return StorageCodec.STORED;
+        }
+        if (entropy(head, length) > MAX_DEFLATE_ENTROPY) {
+            return StorageCodec.STORED;
+        }
+        return m_deflate;
+    }
+
+    /**
+     * Calculates the Shannon entropy of the specified data.
+     *
+     * @return The entropy in bits per byte (0-8).
+     */
+    private static double entropy(byte[] data, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[data[i] & 0xff]++;
+        }
+        double result = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                double p = (double) counts[i] / length;
+                result -= p * Math.log(p);
+            }
+        }
+        return result / Math.log(2);
+    }
+}
@@ -78,4 +78,15 @@ class StreamDeploymentPackage extends AbstractDeploymentPackage {
         return new NonCloseableStream(m_input);
     }
 
+    /**
+     * Skips the entries that were not read and closes the stream, which waits until the received package is
+     * stored completely.
+     */
+    public void finish() throws IOException {
+        while (m_input.getNextJarEntry() != null) {
+            // skip entries that were not read
+        }
+        m_input.close();
+    }
+
 }
@@ -0,0 +1,34 @@
+package de.akquinet.gomobile.deploymentadmin.api;
+
+import java.util.List;
+
+import org.osgi.service.deploymentadmin.spi.ResourceProcessor;
+import org.osgi.service.deploymentadmin.spi.ResourceProcessorException;
+
+/**
+ * Extension of a resource processor that processes or drops several resources in one call. The Deployment Admin
+ * hands consecutive resources of the same resource processor to <code>processAll</code> and all resources of the
+ * resource processor that are dropped by a deployment session to <code>droppedAll</code>. Resource processors that
+ * do not implement this interface still get one call for every resource.
+ */
+public interface BatchingResourceProcessor extends ResourceProcessor {
+
+    /**
+     * Processes a batch of resources, just like calling <code>process</code> for every resource of the batch in
+     * order. Unless it throws an exception, the implementation must advance the cursor until <code>next()</code>
+     * returns <code>false</code>, even if it is not interested in the remaining resources. Returning while the cursor
+     * has not reached the end of the batch fails the deployment session.
+     *
+     * @param resources Cursor over the resources to process.
+     * @throws ResourceProcessorException If a resource could not be processed, the cursor is positioned on it.
+     */
+    void processAll(ResourceBatch resources) throws ResourceProcessorException;
+
+    /**
+     * Drops a batch of resources, just like calling <code>dropped</code> for every resource in order.
+     *
+     * @param resources <code>List</code> containing the names of the dropped resources.
+     * @throws ResourceProcessorException If a resource could not be dropped.
+     */
+    void droppedAll(List resources) throws ResourceProcessorException;
+}
@@ -0,0 +1,12 @@
+package de.akquinet.gomobile.deploymentadmin.api;
+
+import org.osgi.service.deploymentadmin.spi.ResourceProcessor;
+
+/**
+ * Marker for resource processors that depend on the order in which resource processors are prepared and committed.
+ * When the Deployment Admin prepares and commits resource processors concurrently, resource processors implementing
+ * this interface are still prepared and committed one after another, in the order defined by the specification,
+ * once all other resource processors are done.
+ */
+public interface OrderedResourceProcessor extends ResourceProcessor {
+}
@@ -0,0 +1,31 @@
+package de.akquinet.gomobile.deploymentadmin.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Cursor over the resources handed to a <code>BatchingResourceProcessor</code> in one call. The cursor is positioned
+ * before the first resource, every call to <code>next</code> moves it to the following resource. The stream of a
+ * resource can only be read until the cursor is moved again.
+ */
+public interface ResourceBatch {
+
+    /**
+     * Moves the cursor to the next resource of the batch. A batch is only consumed once this has returned
+     * <code>false</code>.
+     *
+     * @return <code>false</code> if there are no more resources in the batch.
+     * @throws IOException If the deployment package could not be read.
+     */
+    boolean next() throws IOException;
+
+    /**
+     * @return The name of the current resource, as it is passed to <code>ResourceProcessor.process</code>.
+     */
+    String getName();
+
+    /**
+     * @return The stream containing the current resource, it must not be closed.
+     */
+    InputStream getStream();
+}
@@ -0,0 +1,25 @@
+package de.akquinet.gomobile.deploymentadmin.api;
+
+import org.osgi.framework.Version;
+
+/**
+ * Handle to a deployment package that was received and stored by
+ * <code>StagingDeploymentAdmin.stageDeploymentPackage</code> but is not installed yet.
+ */
+public interface StagedDeploymentPackage {
+
+    /**
+     * @return The identifier of the staged package, unique among all staged packages.
+     */
+    String getId();
+
+    /**
+     * @return The symbolic name of the staged deployment package.
+     */
+    String getName();
+
+    /**
+     * @return The version of the staged deployment package.
+     */
+    Version getVersion();
+}
@@ -0,0 +1,48 @@
+package de.akquinet.gomobile.deploymentadmin.api;
+
+import java.io.InputStream;
+
+import org.osgi.service.deploymentadmin.DeploymentException;
+import org.osgi.service.deploymentadmin.DeploymentPackage;
+
+/**
+ * Extension of the Deployment Admin that separates receiving a deployment package from installing it.
+ * Staging reads, verifies and stores a deployment package without locking or stopping anything, so the
+ * time the target system is disturbed does not depend on the speed of the transfer. Activation installs
+ * a staged package from local disk.
+ */
+public interface StagingDeploymentAdmin {
+
+    /**
+     * Receives a deployment package and stores it on disk. The digests declared in the manifest are
+     * verified against the received entries. Staged packages survive a restart of the Deployment Admin.
+     *
+     * @param input The stream containing the deployment package, it is read completely and closed.
+     * @return Handle to the staged package.
+     * @throws DeploymentException If the stream does not contain a valid deployment package or a digest does not match.
+     */
+    StagedDeploymentPackage stageDeploymentPackage(InputStream input) throws DeploymentException;
+
+    /**
+     * Installs a staged deployment package, just like <code>DeploymentAdmin.installDeploymentPackage</code>
+     * would install it from a stream. The staged package is discarded if the installation succeeds, if it
+     * fails the package stays staged.
+     *
+     * @param staged Handle to the staged package.
+     * @return The installed deployment package.
+     * @throws DeploymentException If the installation failed or the package is not staged.
+     */
+    DeploymentPackage activate(StagedDeploymentPackage staged) throws DeploymentException;
+
+    /**
+     * Removes a staged deployment package without installing it.
+     *
+     * @param staged Handle to the staged package, unknown handles are ignored.
+     */
+    void discard(StagedDeploymentPackage staged);
+
+    /**
+     * @return The packages that are currently staged.
+     */
+    StagedDeploymentPackage[] listStagedDeploymentPackages();
+}
@@ -1,44 +1,150 @@
 package de.akquinet.gomobile.deploymentadmin.spi;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.osgi.service.deploymentadmin.DeploymentException;
 import org.osgi.service.deploymentadmin.spi.ResourceProcessor;
 import org.osgi.service.deploymentadmin.spi.ResourceProcessorException;
 import org.osgi.service.log.LogService;
 
+import de.akquinet.gomobile.deploymentadmin.api.OrderedResourceProcessor;
+
 /**
- * Command that commits all the resource processors that were added to the command.
+ * Command that commits all the resource processors that were added to the command. Resource processors are
+ * prepared and committed in the reverse order they were added. If the deployment admin is configured to do so,
+ * all resource processors are prepared concurrently and then committed concurrently instead, except for
+ * <code>OrderedResourceProcessor</code>s which are handled in order once the others are done.
  */
 public class CommitResourceCommand extends Command implements Runnable {
 
     private final List m_processors = new ArrayList();
+    private final Map/*ResourceProcessor -> Boolean*/ m_added = new IdentityHashMap();
 
     public void execute(DeploymentSessionImpl session) throws DeploymentException {
+        if (session.isParallelCommit()) {
+            executeConcurrently(session);
+            return;
+        }
         for (ListIterator i = m_processors.listIterator(m_processors.size()); i.hasPrevious();) {
     		ResourceProcessor processor = (ResourceProcessor) i.previous();
-            try {
-                processor.prepare();
-            }
-            catch (ResourceProcessorException e) {
-                session.getLog().log(LogService.LOG_ERROR, "Preparing commit for resource processor failed", e);
-                throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Preparing commit for resource processor failed", e);
-            }
+            prepare(session, processor);
         }
         for (ListIterator i = m_processors.listIterator(m_processors.size()); i.hasPrevious();) {
             ResourceProcessor processor = (ResourceProcessor) i.previous();
-            try {
-                processor.commit();
+            commit(session, processor);
+        }
+        clear();
+    }
+
+    /**
+     * Prepares and commits the resource processors on the work executor. Every resource processor gets the commit
+     * timeout, counted from when it starts. A resource processor that does not prepare in time is interrupted and fails
+     * the session, one that does not commit in time is logged. Either way the command waits until it is done.
+     */
+    private void executeConcurrently(DeploymentSessionImpl session) throws DeploymentException {
+        List unordered = new ArrayList();
+        List ordered = new ArrayList();
+        for (ListIterator i = m_processors.listIterator(m_processors.size()); i.hasPrevious();) {
+            ResourceProcessor processor = (ResourceProcessor) i.previous();
+            if (processor instanceof OrderedResourceProcessor) {
+                ordered.add(processor);
             }
-            catch (Exception e) {
-                session.getLog().log(LogService.LOG_ERROR, "Committing resource processor '" + processor + "' failed", e);
-                // TODO Throw exception?
+            else {
+                unordered.add(processor);
             }
         }
-        m_processors.clear();
+
+        Throwable failure = await(session, submit(session, unordered, false), "Preparing commit for resource processor", true);
+        if (failure != null) {
+            throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Preparing commit for resource processor failed", failure);
+        }
+        for (Iterator i = ordered.iterator(); i.hasNext();) {
+            prepare(session, (ResourceProcessor) i.next());
+        }
+
+        // commits that take too long are not interrupted, that could leave their state inconsistent
+        await(session, submit(session, unordered, true), "Committing resource processor", false);
+        for (Iterator i = ordered.iterator(); i.hasNext();) {
+            commit(session, (ResourceProcessor) i.next());
+        }
+        clear();
+    }
+
+    private static void prepare(DeploymentSessionImpl session, ResourceProcessor processor) throws DeploymentException {
+        try {
+            processor.prepare();
+        }
+        catch (ResourceProcessorException e) {
+            session.getLog().log(LogService.LOG_ERROR, "Preparing commit for resource processor failed", e);
+            throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Preparing commit for resource processor failed", e);
+        }
+    }
+
+    private static void commit(DeploymentSessionImpl session, ResourceProcessor processor) {
+        try {
+            processor.commit();
+        }
+        catch (Exception e) {
+            session.getLog().log(LogService.LOG_ERROR, "Committing resource processor '" + processor + "' failed", e);
+            // TODO Throw exception?
+        }
+    }
+
+    private static List submit(DeploymentSessionImpl session, List processors, boolean commit) {
+        ExecutorService executor = session.getWorkExecutor();
+        List tasks = new ArrayList();
+        for (Iterator i = processors.iterator(); i.hasNext();) {
+            PhaseTask task = new PhaseTask((ResourceProcessor) i.next(), commit);
+            task.m_future = executor.submit(task);
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    /**
+     * Waits for the resource processors of a phase. Every resource processor gets the commit timeout, counted from
+     * when it actually starts. Resource processors that are not done in time are waited for nevertheless, so none of
+     * them is still running when the session goes on or is rolled back.
+     *
+     * @param interrupt True if resource processors that are not done in time should be interrupted and fail the phase.
+     * @return The first failure or <code>null</code> if all resource processors succeeded in time.
+     */
+    private static Throwable await(DeploymentSessionImpl session, List tasks, String action, boolean interrupt) {
+        Throwable failure = null;
+        long timeout = session.getCommitTimeout();
+        for (Iterator i = tasks.iterator(); i.hasNext();) {
+            PhaseTask task = (PhaseTask) i.next();
+            if (!task.await(timeout)) {
+                if (interrupt) {
+                    session.getLog().log(LogService.LOG_ERROR, action + " '" + task.m_processor + "' did not finish within " + timeout + " ms, interrupting it");
+                    task.m_future.cancel(true);
+                    if (failure == null) {
+                        failure = new TimeoutException(action + " '" + task.m_processor + "' did not finish within " + timeout + " ms");
+                    }
+                }
+                else {
+                    session.getLog().log(LogService.LOG_WARNING, action + " '" + task.m_processor + "' did not finish within " + timeout + " ms, waiting for it");
+                }
+                task.await(-1);
+            }
+            if (task.m_failure != null) {
+                session.getLog().log(LogService.LOG_ERROR, action + " '" + task.m_processor + "' failed", task.m_failure);
+                if (failure == null) {
+                    failure = task.m_failure;
+                }
+            }
+        }
+        return failure;
     }
 
     public void rollback() {
@@ -52,6 +158,7 @@ public class CommitResourceCommand extends Command implements Runnable {
             }
             i.remove();
         }
+        m_added.clear();
     }
 
     /**
@@ -61,11 +168,8 @@ public class CommitResourceCommand extends Command implements Runnable {
      * @return true if the resource processor was added, false if it was already added.
      */
     public boolean addResourceProcessor(ResourceProcessor processor) {
-        for (Iterator i = m_processors.iterator(); i.hasNext();) {
-            ResourceProcessor proc = (ResourceProcessor) i.next();
-            if (proc == processor) {
-                return false;
-            }
+        if (m_added.put(processor, Boolean.TRUE) != null) {
+            return false;
         }
         m_processors.add(processor);
         return true;
@@ -75,4 +179,74 @@ public class CommitResourceCommand extends Command implements Runnable {
         rollback();
     }
 
+    private void clear() {
+        m_processors.clear();
+        m_added.clear();
+    }
+
+    private static class PhaseTask implements Runnable {
+
+        private final ResourceProcessor m_processor;
+        private final boolean m_commit;
+        private final CountDownLatch m_started = new CountDownLatch(1);
+        private final CountDownLatch m_done = new CountDownLatch(1);
+        private volatile long m_startTime;
+        private volatile Throwable m_failure;
+        private Future m_future;
+
+        public PhaseTask(ResourceProcessor processor, boolean commit) {
+            m_processor = processor;
+            m_commit = commit;
+        }
+
+        public void run() {
+            m_startTime = System.currentTimeMillis();
+            m_started.countDown();
+            try {
+                if (m_commit) {
+                    m_processor.commit();
+                }
+                else {
+                    m_processor.prepare();
+                }
+            }
+            catch (Throwable t) {
+                m_failure = t;
+            }
+            finally {
+                m_done.countDown();
+            }
+        }
+
+        /**
+         * Waits for the task, the time it spends queued on the executor does not count.
+         *
+         * @param timeout Number of milliseconds the task may run, negative to wait until it is done.
+         * @return True if the task is done.
+         */
+        public boolean await(long timeout) {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        m_started.await();
+                        if (timeout < 0) {
+                            m_done.await();
+                            return true;
+                        }
+                        return m_done.await(m_startTime + timeout - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                    }
+                    catch (InterruptedException e) {
+                        // the resource processor has to finish before the session goes on
+                        interrupted = true;
+                    }
+                }
+            }
+            finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
 }
@@ -2,11 +2,15 @@ package de.akquinet.gomobile.deploymentadmin.spi;
 
 import java.io.File;
 import java.io.InputStream;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -18,7 +22,9 @@ import org.osgi.service.log.LogService;
 import org.osgi.service.packageadmin.PackageAdmin;
 
 import de.akquinet.gomobile.deploymentadmin.AbstractDeploymentPackage;
+import de.akquinet.gomobile.deploymentadmin.BundleInfoImpl;
 import de.akquinet.gomobile.deploymentadmin.DeploymentAdminImpl;
+import de.akquinet.gomobile.deploymentadmin.Janitor;
 
 /**
  * Represents a running deployment session.
@@ -32,6 +38,9 @@ public class DeploymentSessionImpl implements DeploymentSession {
     private volatile Command m_currentCommand = null;
     private volatile boolean m_cancelled;
     private volatile boolean m_failed;
+    private final Set/*Bundle*/ m_refreshBundles = new LinkedHashSet();
+    private volatile long m_refreshDuration = -1;
+    private final Map/*String -> Long*/ m_startDurations = new LinkedHashMap();
 
     public DeploymentSessionImpl(AbstractDeploymentPackage source, AbstractDeploymentPackage target, List commands, DeploymentAdminImpl admin) {
         m_source = source;
@@ -101,38 +110,7 @@ public class DeploymentSessionImpl implements DeploymentSession {
      *     persistent storage area for the bundle
      */
     public File getDataFile(Bundle bundle) {
-        BundleContext context = null;
-        try {
-            // try to find the method in the current class
-            Method getBundleContext = bundle.getClass().getDeclaredMethod("getBundleContext", null);
-            getBundleContext.setAccessible(true);
-            context = (BundleContext) getBundleContext.invoke(bundle, null);
-        }
-        catch (Exception e) {
-            // if we cannot find the method at first, we try again below
-        }
-        if (context == null) {
-            try {
-                // try to find the method in superclasses
-                Method getBundleContext = bundle.getClass().getMethod("getBundleContext", null);
-                getBundleContext.setAccessible(true);
-                context = (BundleContext) getBundleContext.invoke(bundle, null);
-            }
-            catch (Exception e) {
-                // we still can't find the method, we will throw an exception indicating that below
-            }
-        }
-        File result = null;
-        if (context != null) {
-            result = context.getDataFile("");
-        }
-        else {
-            throw new IllegalStateException("Could not retrieve valid bundle context from bundle " + bundle.getSymbolicName());
-        }
-        if (result == null) {
-            throw new IllegalStateException("Could not retrieve base directory for bundle " + bundle.getSymbolicName());
-        }
-        return result;
+        return m_admin.getDataAreas().getDataFile(bundle);
     }
 
     public DeploymentPackage getSourceDeploymentPackage() {
@@ -188,6 +166,36 @@ public class DeploymentSessionImpl implements DeploymentSession {
         return m_source;
     }
 
+    /**
+     * Determines whether the session changes a bundle of the target deployment package. A bundle is changed if it is
+     * dropped by the source deployment package or if its version or content differs between both packages. Bundles
+     * marked with <code>Constants.DEPLOYMENTPACKAGE_MISSING</code> in the source deployment package are unchanged.
+     * If both packages contain the same version of the bundle but the digest of either one is not known yet, the
+     * bundle counts as changed since its content may still differ.
+     *
+     * @param symbolicName The symbolic name of the bundle.
+     * @return True if the bundle is changed by the session.
+     */
+    public boolean isBundleChanged(String symbolicName) {
+        BundleInfoImpl sourceBundleInfo = m_source.getBundleInfoByName(symbolicName);
+        BundleInfoImpl targetBundleInfo = m_target.getBundleInfoByName(symbolicName);
+        if (sourceBundleInfo == null) {
+            return true;
+        }
+        if (sourceBundleInfo.isMissing()) {
+            return false;
+        }
+        if (targetBundleInfo == null || !targetBundleInfo.getVersion().equals(sourceBundleInfo.getVersion())) {
+            return true;
+        }
+        String sourceDigest = m_source.getBundleDigest(symbolicName);
+        String targetDigest = m_target.getBundleDigest(symbolicName);
+        if (sourceDigest == null || targetDigest == null) {
+            return true;
+        }
+        return !sourceDigest.equals(targetDigest);
+    }
+
     /**
      * Returns true if the session has failed. This is used to detect failure in the
      * forced mode.
@@ -210,16 +218,180 @@ public class DeploymentSessionImpl implements DeploymentSession {
 
     public void uninstallBundle(Bundle bundle, AbstractDeploymentPackage dp) throws BundleException {
         m_admin.uninstallBundle(bundle, dp);
+        // with shared ownership the bundle may still be owned by another package
+        if (bundle.getState() == Bundle.UNINSTALLED) {
+            addRefreshBundle(bundle);
+        }
     }
 
 	public Bundle updateBundle(Bundle bundle,
 			InputStream is,
 			AbstractDeploymentPackage dp) throws BundleException {
-        return m_admin.updateBundle(bundle, is, dp);
+        Bundle result = m_admin.updateBundle(bundle, is, dp);
+        addRefreshBundle(result);
+        return result;
+	}
+
+    private void addRefreshBundle(Bundle bundle) {
+        synchronized (m_refreshBundles) {
+            m_refreshBundles.add(bundle);
+        }
+    }
+
+    /**
+     * Returns the bundles this session updated or uninstalled, only their packages need to be refreshed.
+     *
+     * @return Array containing the bundles, empty if no bundle was updated or uninstalled.
+     */
+    public Bundle[] getRefreshBundles() {
+        synchronized (m_refreshBundles) {
+            return (Bundle[]) m_refreshBundles.toArray(new Bundle[m_refreshBundles.size()]);
+        }
+    }
+
+    /**
+     * Returns the object package refreshes are synchronized on, refreshes of concurrent sessions must not overlap
+     * because their completion events can not be told apart.
+     *
+     * @return The lock object.
+     */
+    public Object getRefreshLock() {
+        return m_admin.getRefreshLock();
+    }
+
+    /**
+     * Records how long refreshing the packages took.
+     *
+     * @param duration The duration in milliseconds.
+     */
+    public void setRefreshDuration(long duration) {
+        m_refreshDuration = duration;
+    }
+
+    /**
+     * @return The number of milliseconds refreshing the packages took, -1 if no refresh was needed.
+     */
+    public long getRefreshDuration() {
+        return m_refreshDuration;
+    }
+
+    /**
+     * Records how long starting a bundle took.
+     *
+     * @param bundle The bundle.
+     * @param duration The duration in milliseconds.
+     */
+    public void setStartDuration(Bundle bundle, long duration) {
+        synchronized (m_startDurations) {
+            m_startDurations.put(bundle.getSymbolicName(), new Long(duration));
+        }
+        getLog().log(LogService.LOG_DEBUG, "Started bundle '" + bundle.getSymbolicName() + "' in " + duration + " ms");
+    }
+
+    /**
+     * @return <code>Map</code> from the symbolic names of the bundles started by this session to the number of milliseconds starting them took.
+     */
+    public Map getStartDurations() {
+        synchronized (m_startDurations) {
+            return new LinkedHashMap(m_startDurations);
+        }
+    }
+
+    /**
+     * @return True if bundles that are not wired to each other should be started concurrently.
+     */
+    public boolean isParallelStart() {
+        return m_admin.isParallelStart();
+    }
+
+    /**
+     * @return True if bundles should be stopped concurrently in the reverse order of their wiring.
+     */
+    public boolean isParallelStop() {
+        return m_admin.isParallelStop();
+    }
+
+    /**
+     * @return True if snapshots of storage areas are kept after the session is committed.
+     */
+    public boolean isKeepSnapshots() {
+        return m_admin.isKeepSnapshots();
+    }
+
+    /**
+     * @return True if different resource processors should process their resources concurrently.
+     */
+    public boolean isParallelProcess() {
+        return m_admin.isParallelProcess();
+    }
+
+    /**
+     * @return The size up to which resources waiting for their resource processor are buffered in memory.
+     */
+    public int getSpoolSize() {
+        return m_admin.getSpoolSize();
+    }
+
+    /**
+     * @return True if resource processors should be prepared and committed concurrently.
+     */
+    public boolean isParallelCommit() {
+        return m_admin.isParallelCommit();
+    }
+
+    /**
+     * @return The number of milliseconds to wait for resource processors to prepare or commit when they are prepared and committed concurrently.
+     */
+    public long getCommitTimeout() {
+        return m_admin.getCommitTimeout();
+    }
+
+    /**
+     * @return The number of milliseconds to wait for a bundle to stop when bundles are stopped concurrently.
+     */
+    public long getStopTimeout() {
+        return m_admin.getStopTimeout();
+    }
+
+    /**
+     * @return False if bundles that are not affected by the session do not need to be stopped.
+     */
+    public boolean isStopUnaffectedBundles() {
+        return m_admin.isStopUnaffectedBundles();
+    }
+
+    /**
+     * @return The janitor commands can use to delete directory trees in the background.
+     */
+    public Janitor getJanitor() {
+        return m_admin.getJanitor();
+    }
+
+    /**
+     * Returns the executor commands can use to run work concurrently, the number of its threads is bounded.
+     *
+     * @return The <code>ExecutorService</code>.
+     */
+    public ExecutorService getWorkExecutor() {
+        return m_admin.getWorkExecutor();
+    }
+
+    /**
+     * Returns the executor commands can use to run work that waits for other work, it is not bounded.
+     *
+     * @return The <code>ExecutorService</code>.
+     */
+    public ExecutorService getExecutor() {
+        return m_admin.getExecutor();
+    }
+
+	public boolean addOwnership(Bundle bundle,
+			AbstractDeploymentPackage dp) {
+		return m_admin.addOwnership(bundle, dp);
 	}
 
-	public void addOwnership(Bundle bundle,
+	public void removeOwnership(Bundle bundle,
 			AbstractDeploymentPackage dp) {
-		m_admin.addOwnership(bundle, dp);
+		m_admin.removeOwnership(bundle, dp);
 	}
 }
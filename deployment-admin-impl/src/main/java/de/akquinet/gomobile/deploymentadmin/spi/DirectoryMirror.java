@@ -0,0 +1,171 @@
+package de.akquinet.gomobile.deploymentadmin.spi;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Keeps a directory tree identical to another one. Like <code>rsync</code> it only copies files whose size or
+ * modification time differs between both trees and deletes whatever is no longer present in the source, so the
+ * work done is proportional to what changed since the last synchronization. Copied files get the modification
+ * time of their source, which is what the next synchronization compares against.
+ *
+ * Modification times have a limited granularity, up to two seconds on some file systems. A file that is rewritten
+ * with the same size within that time after it was copied keeps its modification time. Such a file is copied with a
+ * modification time that is off by the granularity instead, and the content of files whose times are no further
+ * apart than that is compared before they are skipped.
+ */
+class DirectoryMirror {
+
+    private static final long MTIME_GRANULARITY = 2000;
+
+    private DirectoryMirror() {
+    }
+
+    /**
+     * Makes the target tree identical to the source tree.
+     *
+     * @param source The directory to copy from.
+     * @param target The directory to copy to, it is created if needed.
+     * @return The number of bytes that were copied.
+     * @throws IOException If a file could not be copied or the target could not be created.
+     */
+    public static long sync(File source, File target) throws IOException {
+        if (target.isFile()) {
+            target.delete();
+        }
+        if (!target.isDirectory() && !target.mkdirs()) {
+            throw new IOException("Could not create directory " + target.getAbsolutePath());
+        }
+        long start = System.currentTimeMillis();
+        long result = 0;
+        File[] sources = source.listFiles();
+        if (sources == null) {
+            throw new IOException("Could not list directory " + source.getAbsolutePath());
+        }
+        for (int i = 0; i < sources.length; i++) {
+            File from = sources[i];
+            File to = new File(target, from.getName());
+            if (from.isDirectory()) {
+                result += sync(from, to);
+            }
+            else if (!to.isFile() || to.length() != from.length()) {
+                if (to.isDirectory()) {
+                    delete(to);
+                }
+                result += copy(from, to, start);
+            }
+            else if (to.lastModified() != from.lastModified()) {
+                if (Math.abs(to.lastModified() - from.lastModified()) <= MTIME_GRANULARITY && equals(from, to)) {
+                    stamp(from, to, start);
+                } else {
+                    result += copy(from, to, start);
+                }
+            }
+        }
+        File[] targets = target.listFiles();
+        for (int i = 0; i < targets.length; i++) {
+            if (!new File(source, targets[i].getName()).exists()) {
+                delete(targets[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Deletes a file or directory tree.
+     *
+     * @param root The file or directory to delete.
+     */
+    public static void delete(File root) {
+        if (root.isDirectory()) {
+            File[] childs = root.listFiles();
+            for (int i = 0; i < childs.length; i++) {
+                delete(childs[i]);
+            }
+        }
+        root.delete();
+    }
+
+    private static long copy(File from, File to, long start) throws IOException {
+        long result = 0;
+        FileInputStream input = null;
+        FileOutputStream output = null;
+        try {
+            input = new FileInputStream(from);
+            output = new FileOutputStream(to);
+            // let the platform move the data between the files without copying it through the heap
+            FileChannel source = input.getChannel();
+            FileChannel target = output.getChannel();
+            long size = source.size();
+            while (result < size) {
+                long transferred = source.transferTo(result, size - result, target);
+                if (transferred <= 0) {
+                    // the file was truncated while copying it
+                    break;
+                }
+                result += transferred;
+            }
+        }
+        finally {
+            if (input != null) {
+                try {
+                    input.close();
+                }
+                catch (IOException e) {
+                    // Not much we can do
+                }
+            }
+            if (output != null) {
+                output.close();
+            }
+        }
+        stamp(from, to, start);
+        return result;
+    }
+
+    /**
+     * Gives a copied file the modification time of its source. If the source was modified too shortly before the
+     * synchronization started, a later change may not move its modification time, the copy gets a time that makes
+     * the next synchronization compare the content.
+     */
+    private static void stamp(File from, File to, long start) {
+        long modified = from.lastModified();
+        if (start - modified > MTIME_GRANULARITY) {
+            to.setLastModified(modified);
+        } else {
+            to.setLastModified(modified - MTIME_GRANULARITY);
+        }
+    }
+
+    private static boolean equals(File first, File second) throws IOException {
+        InputStream firstInput = null;
+        InputStream secondInput = null;
+        try {
+            firstInput = new BufferedInputStream(new FileInputStream(first));
+            secondInput = new BufferedInputStream(new FileInputStream(second));
+            for (int i = firstInput.read(); i != -1; i = firstInput.read()) {
+                if (i != secondInput.read()) {
+                    return false;
+                }
+            }
+            return secondInput.read() == -1;
+        }
+        finally {
+            try {
+                if (firstInput != null) {
+                    firstInput.close();
+                }
+            }
+            finally {
+                if (secondInput != null) {
+                    secondInput.close();
+                }
+            }
+        }
+    }
+}
@@ -1,5 +1,16 @@
 package de.akquinet.gomobile.deploymentadmin.spi;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.deploymentadmin.spi.ResourceProcessor;
@@ -10,7 +21,9 @@ import de.akquinet.gomobile.deploymentadmin.AbstractDeploymentPackage;
 import de.akquinet.gomobile.deploymentadmin.ResourceInfoImpl;
 
 /**
- * Command that drops all resources.
+ * Command that drops all resources. Every resource processor provided by the target deployment package is asked
+ * once to drop all its resources, no matter how many resources it processed. Different resource processors are
+ * independent of each other and are called concurrently on the work executor of the deployment admin.
  */
 public class DropAllResourcesCommand extends Command {
 
@@ -38,6 +51,8 @@ public class DropAllResourcesCommand extends Command {
         // TODO for the count support, checks that the bundle is not used by
         // anybody else.
 
+        // the resource processors in reverse order of their first resource
+        Map/*ServiceReference -> String*/ references = new LinkedHashMap();
         ResourceInfoImpl[] orderedTargetResources = target
                 .getOrderedResourceInfos();
         for (int i = orderedTargetResources.length - 1; i >= 0; i--) {
@@ -46,43 +61,92 @@ public class DropAllResourcesCommand extends Command {
             String sn = orderedTargetResources[i].getResourceProcessor();
             ServiceReference ref = target.getResourceProcessor(path);
 
-            if (ref != null
+            if (ref != null && !references.containsKey(ref)
                     && target
                             .isResourceProcessorProvidedByTheDeploymentPackage(ref)) {
-                // Must call droppedAllResources
-                ResourceProcessor rp = (ResourceProcessor) context
-                        .getService(ref);
-                if (rp == null) {
-                    session.fail();
-                    log.log(LogService.LOG_ERROR, "Resource Processor '" + sn
-                            + "' not available during uninstallation ");
-                    if (!m_forcedMode) {
-                        // Rollback
-                        m_commitCommand.rollback();
-                    }
-                } else {
-                    try {
-                        if (m_commitCommand.addResourceProcessor(rp)) {
-                            rp.begin(session);
-                        }
-
-                        rp.dropAllResources();
-                    } catch (ResourceProcessorException e) {
-                        session.fail();
-                        log.log(LogService.LOG_ERROR,
-                                "The Resource Processor '" + sn
-                                        + "'  has thrown an exception during"
-                                        + " the resource processing : "
-                                        + e.getMessage());
-                        if (!m_forcedMode) {
-                            // Rollback
-                            m_commitCommand.rollback();
-                        }
-                    }
+                references.put(ref, sn);
+            }
+        }
+
+        List tasks = new ArrayList();
+        boolean failed = false;
+        for (Iterator i = references.entrySet().iterator(); i.hasNext();) {
+            Map.Entry entry = (Map.Entry) i.next();
+            String sn = (String) entry.getValue();
+            // Must call droppedAllResources
+            ResourceProcessor rp = (ResourceProcessor) context
+                    .getService((ServiceReference) entry.getKey());
+            if (rp == null) {
+                failed = true;
+                log.log(LogService.LOG_ERROR, "Resource Processor '" + sn
+                        + "' not available during uninstallation ");
+            } else {
+                // sessions are begun in order, the commit command relies on it
+                if (m_commitCommand.addResourceProcessor(rp)) {
+                    rp.begin(session);
                 }
+                tasks.add(new DropAllTask(rp, sn));
+            }
+        }
 
+        List futures = submit(session, tasks);
+        for (int i = 0; i < futures.size(); i++) {
+            DropAllTask task = (DropAllTask) tasks.get(i);
+            try {
+                ((Future) futures.get(i)).get();
+            } catch (ExecutionException e) {
+                failed = true;
+                log.log(LogService.LOG_ERROR,
+                        "The Resource Processor '" + task.m_name
+                                + "'  has thrown an exception during"
+                                + " the resource processing : "
+                                + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed = true;
+                log.log(LogService.LOG_ERROR, "Interrupted while the Resource Processor '"
+                        + task.m_name + "' dropped its resources");
             }
+        }
+
+        if (failed) {
+            session.fail();
+            if (!m_forcedMode) {
+                // Rollback
+                m_commitCommand.rollback();
+            }
+        }
+    }
+
+    private static List submit(DeploymentSessionImpl session, List tasks) {
+        List futures = new ArrayList();
+        if (tasks.size() == 1) {
+            // nothing to run concurrently, avoid the hand off
+            FutureTask future = new FutureTask((Callable) tasks.get(0));
+            future.run();
+            futures.add(future);
+            return futures;
+        }
+        ExecutorService executor = session.getWorkExecutor();
+        for (Iterator i = tasks.iterator(); i.hasNext();) {
+            futures.add(executor.submit((Callable) i.next()));
+        }
+        return futures;
+    }
+
+    private static class DropAllTask implements Callable {
+
+        private final ResourceProcessor m_processor;
+        private final String m_name;
+
+        public DropAllTask(ResourceProcessor processor, String name) {
+            m_processor = processor;
+            m_name = name;
+        }
 
+        public Object call() throws ResourceProcessorException {
+            m_processor.dropAllResources();
+            return null;
         }
     }
 }
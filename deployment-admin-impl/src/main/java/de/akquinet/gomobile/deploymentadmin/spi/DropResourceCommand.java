@@ -1,5 +1,12 @@
 package de.akquinet.gomobile.deploymentadmin.spi;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.deploymentadmin.spi.ResourceProcessor;
@@ -8,6 +15,7 @@ import org.osgi.service.log.LogService;
 
 import de.akquinet.gomobile.deploymentadmin.AbstractDeploymentPackage;
 import de.akquinet.gomobile.deploymentadmin.ResourceInfoImpl;
+import de.akquinet.gomobile.deploymentadmin.api.BatchingResourceProcessor;
 
 /**
  * Command that drops resources.
@@ -50,6 +58,9 @@ public class DropResourceCommand extends Command {
         BundleContext context = session.getBundleContext();
         LogService log = session.getLog();
 
+        // resources of batching resource processors are dropped together once all resources are known
+        Map/*BatchingResourceProcessor -> List<String>*/ batches = new LinkedHashMap();
+        Map/*BatchingResourceProcessor -> String*/ batchNames = new HashMap();
         ResourceInfoImpl[] orderedTargetResources = target.getOrderedResourceInfos();
         for (int i = orderedTargetResources.length - 1; i >= 0; i--) {
             ResourceInfoImpl resourceInfo = orderedTargetResources[i];
@@ -64,21 +75,21 @@ public class DropResourceCommand extends Command {
                             if (m_commitCommand.addResourceProcessor(resourceProcessor)) {
                                 resourceProcessor.begin(session);
                             }
-                            resourceProcessor.dropped(path);
+                            if (resourceProcessor instanceof BatchingResourceProcessor) {
+                                List paths = (List) batches.get(resourceProcessor);
+                                if (paths == null) {
+                                    paths = new ArrayList();
+                                    batches.put(resourceProcessor, paths);
+                                    batchNames.put(resourceProcessor, sn);
+                                }
+                                paths.add(path);
+                            }
+                            else {
+                                resourceProcessor.dropped(path);
+                            }
                         }
                         catch (ResourceProcessorException e) {
-                            session.fail();
-                            log
-                                    .log(
-                                            LogService.LOG_ERROR,
-                                            "The Resource Processor '"
-                                                    + sn + "'  has thrown an exception during"
-                                                    + " the resource processing : "
-                                                    + e.getMessage());
-                            if (!m_forcedMode) {
-                                // Rollback
-                                m_commitCommand.rollback();
-                            }
+                            handleException(session, sn, e);
                         }
                     }
                 } else {
@@ -100,5 +111,34 @@ public class DropResourceCommand extends Command {
                 }
             }
         }
+        for (Iterator i = batches.entrySet().iterator(); i.hasNext();) {
+            if (session.hasFailed() && !m_forcedMode) {
+                // the resource processors of the batches were rolled back
+                break;
+            }
+            Map.Entry entry = (Map.Entry) i.next();
+            BatchingResourceProcessor resourceProcessor = (BatchingResourceProcessor) entry.getKey();
+            try {
+                resourceProcessor.droppedAll((List) entry.getValue());
+            }
+            catch (ResourceProcessorException e) {
+                handleException(session, (String) batchNames.get(resourceProcessor), e);
+            }
+        }
+    }
+
+    private void handleException(DeploymentSessionImpl session, String sn, ResourceProcessorException e) {
+        session.fail();
+        session.getLog()
+                .log(
+                        LogService.LOG_ERROR,
+                        "The Resource Processor '"
+                                + sn + "'  has thrown an exception during"
+                                + " the resource processing : "
+                                + e.getMessage());
+        if (!m_forcedMode) {
+            // Rollback
+            m_commitCommand.rollback();
+        }
     }
 }
@@ -0,0 +1,22 @@
+package de.akquinet.gomobile.deploymentadmin.spi;
+
+import java.io.IOException;
+
+import org.osgi.service.deploymentadmin.DeploymentException;
+
+/**
+ * Command that reads the remainder of the source deployment package of a deployment session before anything is
+ * committed. A package that is received from a stream is stored while it is read, if it could not be stored completely
+ * the session fails and is rolled back instead of installing a package that is missing entries.
+ */
+public class FinishSourceCommand extends Command {
+
+    public void execute(DeploymentSessionImpl session) throws DeploymentException {
+        try {
+            session.getSourceAbstractDeploymentPackage().finish();
+        }
+        catch (IOException e) {
+            throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Could not store the received deployment package", e);
+        }
+    }
+}
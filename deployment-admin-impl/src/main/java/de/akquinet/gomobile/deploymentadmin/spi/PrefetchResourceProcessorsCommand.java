@@ -0,0 +1,37 @@
+package de.akquinet.gomobile.deploymentadmin.spi;
+
+import org.osgi.service.deploymentadmin.DeploymentException;
+
+import de.akquinet.gomobile.deploymentadmin.AbstractDeploymentPackage;
+import de.akquinet.gomobile.deploymentadmin.BundleInfoImpl;
+import de.akquinet.gomobile.deploymentadmin.ResourceInfoImpl;
+
+/**
+ * Command that looks up the resource processors of all the processed resources in the source deployment package
+ * before any bundle is touched, so a deployment session needing a missing resource processor fails without stopping,
+ * updating and restoring bundles first. If the source deployment package contains customizer bundles the resource
+ * processors are not checked, they may be registered by the customizers once these are started.
+ */
+public class PrefetchResourceProcessorsCommand extends Command {
+
+    public void execute(DeploymentSessionImpl session) throws DeploymentException {
+        AbstractDeploymentPackage source = session.getSourceAbstractDeploymentPackage();
+        BundleInfoImpl[] bundleInfos = source.getBundleInfoImpls();
+        for (int i = 0; i < bundleInfos.length; i++) {
+            if (bundleInfos[i].isCustomizer()) {
+                return;
+            }
+        }
+        ResourceInfoImpl[] resourceInfos = source.getResourceInfos();
+        for (int i = 0; i < resourceInfos.length; i++) {
+            ResourceInfoImpl resourceInfo = resourceInfos[i];
+            String processor = resourceInfo.getResourceProcessor();
+            if (resourceInfo.isMissing() || processor == null || processor.compareToIgnoreCase("null") == 0) {
+                continue;
+            }
+            if (source.getResourceProcessor(resourceInfo.getPath()) == null) {
+                throw new DeploymentException(DeploymentException.CODE_PROCESSOR_NOT_FOUND, "No resource processor " + processor + " for resource: " + resourceInfo.getPath());
+            }
+        }
+    }
+}
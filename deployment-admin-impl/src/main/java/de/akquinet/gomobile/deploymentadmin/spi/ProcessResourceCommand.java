@@ -1,8 +1,17 @@
 package de.akquinet.gomobile.deploymentadmin.spi;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
@@ -12,7 +21,10 @@ import org.osgi.service.deploymentadmin.spi.ResourceProcessorException;
 
 import de.akquinet.gomobile.deploymentadmin.AbstractDeploymentPackage;
 import de.akquinet.gomobile.deploymentadmin.AbstractInfo;
+import de.akquinet.gomobile.deploymentadmin.DeploymentAdminImpl;
 import de.akquinet.gomobile.deploymentadmin.ResourceInfoImpl;
+import de.akquinet.gomobile.deploymentadmin.api.BatchingResourceProcessor;
+import de.akquinet.gomobile.deploymentadmin.api.ResourceBatch;
 
 /**
  * Command that processes all the processed resources in the source deployment package
@@ -48,9 +60,24 @@ public class ProcessResourceCommand extends Command {
             }
         }
 
+        if (session.isParallelProcess()) {
+            processConcurrently(session, expectedResources);
+            return;
+        }
+
         try {
+            // entry read ahead by a batch that did not belong to it
+            AbstractInfo pending = null;
+            boolean hasPending = false;
             while (!expectedResources.isEmpty()) {
-                AbstractInfo jarEntry = source.getNextEntry();
+                AbstractInfo jarEntry;
+                if (hasPending) {
+                    jarEntry = pending;
+                    hasPending = false;
+                }
+                else {
+                    jarEntry = source.getNextEntry();
+                }
                 if (jarEntry == null) {
                     throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Expected more resources in the stream: " + expectedResources.keySet());
                 }
@@ -69,20 +96,29 @@ public class ProcessResourceCommand extends Command {
                     //if (source.getBundleInfoByName(serviceOwnerSymName) != null) {
                         ResourceProcessor resourceProcessor = (ResourceProcessor) context.getService(ref);
                         if (resourceProcessor != null) {
+                            EntryBatch batch = null;
                             try {
                                 if (m_commitCommand.addResourceProcessor(resourceProcessor)) {
                                     resourceProcessor.begin(session);
                                 }
-                                resourceProcessor.process(name, source.getCurrentEntryStream());
-                            }
-                            catch (ResourceProcessorException rpe) {
-                                if (rpe.getCode() == ResourceProcessorException.CODE_RESOURCE_SHARING_VIOLATION) {
-                                    throw new DeploymentException(DeploymentException.CODE_RESOURCE_SHARING_VIOLATION, "Violation while processing resource '" + name + "'", rpe);
+                                if (resourceProcessor instanceof BatchingResourceProcessor) {
+                                    batch = new EntryBatch(source, ref, name, expectedResources);
+                                    ((BatchingResourceProcessor) resourceProcessor).processAll(batch);
+                                    if (!batch.isDone()) {
+                                        throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Resource '" + batch.getName() + "' was not processed by its resource processor");
+                                    }
+                                    if (batch.hasPending()) {
+                                        pending = batch.getPending();
+                                        hasPending = true;
+                                    }
                                 }
                                 else {
-                                    throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Error while processing resource '" + name + "'", rpe);
+                                    resourceProcessor.process(name, source.getCurrentEntryStream());
                                 }
                             }
+                            catch (ResourceProcessorException rpe) {
+                                throw processingFailed((batch != null) ? batch.getName() : name, rpe);
+                            }
                         }
                         else {
                             throw new DeploymentException(DeploymentException.CODE_PROCESSOR_NOT_FOUND, "No resource processor for resource: '" + name + "'");
@@ -101,4 +137,330 @@ public class ProcessResourceCommand extends Command {
         }
     }
 
-}
+    /**
+     * Processes the resources of the source deployment package in a pipeline. The stream is read on the session
+     * thread, every resource is spooled and queued for its resource processor. Every resource processor works through
+     * its queue in the order of the stream, different resource processors work concurrently. The queues are bounded,
+     * reading the stream waits for a resource processor that falls behind. Batching resource processors get all their
+     * resources in a single batch.
+     */
+    private void processConcurrently(DeploymentSessionImpl session, Map expectedResources) throws DeploymentException {
+        AbstractDeploymentPackage source = session.getSourceAbstractDeploymentPackage();
+        BundleContext context = session.getBundleContext();
+        File spoolDir = context.getDataFile(DeploymentAdminImpl.TEMP_DIR);
+        Map/*ResourceProcessor -> Lane*/ lanes = new LinkedHashMap();
+        boolean completed = false;
+        try {
+            while (!expectedResources.isEmpty() && !hasFailed(lanes)) {
+                if (isCancelled()) {
+                    throw new DeploymentException(DeploymentException.CODE_CANCELLED);
+                }
+                AbstractInfo jarEntry = source.getNextEntry();
+                if (jarEntry == null) {
+                    throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Expected more resources in the stream: " + expectedResources.keySet());
+                }
+
+                String name = jarEntry.getPath();
+                if (expectedResources.remove(name) == null) {
+                    throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Resource '" + name + "' is not described in the manifest.");
+                }
+                String resourceName = source.getResourceProcessorName(name);
+                ServiceReference ref = source.getResourceProcessor(name);
+                if (ref == null) {
+                    if (resourceName != null && resourceName.compareToIgnoreCase("null") != 0) {
+                        throw new DeploymentException(DeploymentException.CODE_PROCESSOR_NOT_FOUND, "No resource processor "+ resourceName + " for resource: " + name);
+                    }
+                    continue;
+                }
+                ResourceProcessor resourceProcessor = (ResourceProcessor) context.getService(ref);
+                if (resourceProcessor == null) {
+                    throw new DeploymentException(DeploymentException.CODE_PROCESSOR_NOT_FOUND, "No resource processor for resource: '" + name + "'");
+                }
+                Lane lane = (Lane) lanes.get(resourceProcessor);
+                if (lane == null) {
+                    // sessions are begun on this thread in the order of the stream, the commit command relies on it
+                    if (m_commitCommand.addResourceProcessor(resourceProcessor)) {
+                        resourceProcessor.begin(session);
+                    }
+                    lane = new Lane(resourceProcessor);
+                    // lanes wait for the reader, they must not take the threads of the work executor
+                    lane.m_future = session.getExecutor().submit(lane);
+                    lanes.put(resourceProcessor, lane);
+                }
+                lane.add(SpooledResource.spool(name, source.getCurrentEntryStream(), session.getSpoolSize(), spoolDir));
+            }
+            // a failed lane discards what is left in the other lanes
+            completed = !hasFailed(lanes);
+        }
+        catch (IOException e) {
+            throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Problem while reading stream", e);
+        }
+        finally {
+            // resource processors must be done before the session goes on or is rolled back
+            for (Iterator i = lanes.values().iterator(); i.hasNext();) {
+                ((Lane) i.next()).close(!completed);
+            }
+            for (Iterator i = lanes.values().iterator(); i.hasNext();) {
+                ((Lane) i.next()).await();
+            }
+        }
+        for (Iterator i = lanes.values().iterator(); i.hasNext();) {
+            Lane lane = (Lane) i.next();
+            if (lane.m_failure instanceof DeploymentException) {
+                throw (DeploymentException) lane.m_failure;
+            }
+            if (lane.m_failure instanceof ResourceProcessorException) {
+                throw processingFailed(lane.getName(), (ResourceProcessorException) lane.m_failure);
+            }
+            if (lane.m_failure != null) {
+                throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Error while processing resource '" + lane.getName() + "'", lane.m_failure);
+            }
+        }
+    }
+
+    private static boolean hasFailed(Map lanes) {
+        for (Iterator i = lanes.values().iterator(); i.hasNext();) {
+            if (((Lane) i.next()).m_failure != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static DeploymentException processingFailed(String name, ResourceProcessorException rpe) {
+        if (rpe.getCode() == ResourceProcessorException.CODE_RESOURCE_SHARING_VIOLATION) {
+            return new DeploymentException(DeploymentException.CODE_RESOURCE_SHARING_VIOLATION, "Violation while processing resource '" + name + "'", rpe);
+        }
+        else {
+            return new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Error while processing resource '" + name + "'", rpe);
+        }
+    }
+
+    /**
+     * Queue of the spooled resources of one resource processor, worked through on the work executor. Batching
+     * resource processors read the queue as a single batch.
+     */
+    private static class Lane implements Runnable, ResourceBatch {
+
+        private static final Object END = new Object();
+        private static final int CAPACITY = 16;
+
+        private final ResourceProcessor m_processor;
+        private final BlockingQueue m_queue = new LinkedBlockingQueue(CAPACITY);
+        private volatile boolean m_aborted;
+        private volatile Throwable m_failure;
+        private Future m_future;
+        private volatile String m_name;
+        private Object m_current;
+
+        public Lane(ResourceProcessor processor) {
+            m_processor = processor;
+        }
+
+        /**
+         * Queues a resource, waits while the queue is full.
+         *
+         * @param resource The resource to queue, it is released if it could not be queued.
+         * @throws InterruptedIOException If the thread was interrupted while waiting.
+         */
+        public void add(SpooledResource resource) throws InterruptedIOException {
+            try {
+                m_queue.put(resource);
+            }
+            catch (InterruptedException e) {
+                resource.release();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while queueing resource '" + resource.getName() + "'");
+            }
+        }
+
+        /**
+         * Marks the end of the queue. The lane takes from its queue until it sees the end, so this returns once the
+         * lane has made room for it.
+         *
+         * @param abort True if the resources still queued should be discarded instead of processed.
+         */
+        public void close(boolean abort) {
+            m_aborted = abort;
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    m_queue.put(END);
+                    break;
+                }
+                catch (InterruptedException e) {
+                    // without the end the lane would never finish
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    m_future.get();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    // the resource processor has to finish, it is waited for anyway
+                    interrupted = true;
+                }
+                catch (ExecutionException e) {
+                    if (m_failure == null) {
+                        m_failure = e.getCause();
+                    }
+                    break;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void run() {
+            try {
+                if (m_processor instanceof BatchingResourceProcessor) {
+                    ((BatchingResourceProcessor) m_processor).processAll(this);
+                    if (m_current != END) {
+                        throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Resource '" + m_name + "' was not processed by its resource processor");
+                    }
+                }
+                else {
+                    while (next()) {
+                        m_processor.process(m_name, getStream());
+                    }
+                }
+            }
+            catch (Throwable t) {
+                m_failure = t;
+            }
+            finally {
+                // discard what is left, the reader stops as soon as it sees the failure
+                try {
+                    while (m_current != END) {
+                        release();
+                        m_current = m_queue.take();
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                release();
+            }
+        }
+
+        public boolean next() throws IOException {
+            release();
+            while (m_current != END) {
+                try {
+                    m_current = m_queue.take();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for resource");
+                }
+                if (m_current != END) {
+                    SpooledResource resource = (SpooledResource) m_current;
+                    if (!m_aborted) {
+                        m_name = resource.getName();
+                        resource.getStream();
+                        return true;
+                    }
+                    resource.release();
+                }
+            }
+            return false;
+        }
+
+        public String getName() {
+            return m_name;
+        }
+
+        public InputStream getStream() {
+            try {
+                return ((SpooledResource) m_current).getStream();
+            }
+            catch (IOException e) {
+                // the stream is opened when the cursor is moved to the resource
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+
+        private void release() {
+            if (m_current instanceof SpooledResource) {
+                ((SpooledResource) m_current).release();
+            }
+        }
+    }
+
+    /**
+     * Batch of the consecutive resources in the stream of the source deployment package that belong to the same
+     * resource processor. The first entry that does not belong to the batch is read ahead and kept as pending.
+     */
+    private static class EntryBatch implements ResourceBatch {
+
+        private final AbstractDeploymentPackage m_source;
+        private final ServiceReference m_reference;
+        private final Map m_expectedResources;
+        private String m_name;
+        private boolean m_started;
+        private boolean m_done;
+        private boolean m_hasPending;
+        private AbstractInfo m_pending;
+
+        public EntryBatch(AbstractDeploymentPackage source, ServiceReference reference, String name, Map expectedResources) {
+            m_source = source;
+            m_reference = reference;
+            m_name = name;
+            m_expectedResources = expectedResources;
+        }
+
+        public boolean next() throws IOException {
+            if (m_done) {
+                return false;
+            }
+            if (!m_started) {
+                m_started = true;
+                return true;
+            }
+            if (m_expectedResources.isEmpty()) {
+                m_done = true;
+                return false;
+            }
+            AbstractInfo entry = m_source.getNextEntry();
+            if (entry == null || !m_expectedResources.containsKey(entry.getPath()) || !m_reference.equals(m_source.getResourceProcessor(entry.getPath()))) {
+                m_pending = entry;
+                m_hasPending = true;
+                m_done = true;
+                return false;
+            }
+            m_name = entry.getPath();
+            m_expectedResources.remove(m_name);
+            return true;
+        }
+
+        public String getName() {
+            return m_name;
+        }
+
+        public InputStream getStream() {
+            return m_source.getCurrentEntryStream();
+        }
+
+        public boolean isDone() {
+            return m_done;
+        }
+
+        public boolean hasPending() {
+            return m_hasPending;
+        }
+
+        public AbstractInfo getPending() {
+            return m_pending;
+        }
+    }
+}
\ No newline at end of file
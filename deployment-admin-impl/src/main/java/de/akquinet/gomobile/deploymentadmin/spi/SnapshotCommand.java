@@ -1,24 +1,44 @@
 package de.akquinet.gomobile.deploymentadmin.spi;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
-import org.osgi.service.deploymentadmin.BundleInfo;
 import org.osgi.service.deploymentadmin.DeploymentException;
 import org.osgi.service.log.LogService;
 
 import de.akquinet.gomobile.deploymentadmin.AbstractDeploymentPackage;
-
+import de.akquinet.gomobile.deploymentadmin.BundleInfoImpl;
+import de.akquinet.gomobile.deploymentadmin.DeploymentAdminImpl;
+
+/**
+ * Command that takes a snapshot of the storage areas of all bundles in the target deployment package of a
+ * deployment session that the session touches, if rolled back the storage areas are restored from the snapshots.
+ * Bundles are touched if they are updated or dropped, or if they are customizers that process resources. The storage
+ * areas of all other bundles are not read.
+ *
+ * A snapshot is a mirror of the storage area in <code>snapshots/&lt;bundle symbolic name&gt;</code>. By default mirrors
+ * are kept after a session is committed, they are what makes the next snapshot of the same bundle cheap: it only
+ * copies the files that changed since. The price is disk space, every touched storage area is stored twice for as long
+ * as its bundle is installed. Where that is not affordable the system property
+ * <code>de.akquinet.gomobile.deploymentadmin.keepsnapshots</code> can be set to <code>false</code>, mirrors are then
+ * deleted once the session is done and every snapshot copies the complete storage area. Restoring a snapshot copies
+ * the files that changed during the session back into the storage area, it is a copy and not a rename so it takes as
+ * long as the changes are large. Mirrors are always deleted once their bundle is uninstalled. Snapshots of different
+ * bundles are taken and restored concurrently on the work executor of the deployment admin.
+ *
+ * If a snapshot can not be taken the session fails, it could not be rolled back. Bundles whose storage area could not
+ * be determined, because the framework provides none, have nothing to take a snapshot of and are skipped.
+ */
 public class SnapshotCommand extends Command {
 
     private final GetStorageAreaCommand m_getStorageAreaCommand;
@@ -31,177 +51,169 @@ public class SnapshotCommand extends Command {
         AbstractDeploymentPackage target = session.getTargetAbstractDeploymentPackage();
         BundleContext context = session.getBundleContext();
 
-        BundleInfo[] infos = target.getBundleInfos();
+        BundleInfoImpl[] infos = target.getOrderedBundleInfos();
         Map storageAreas = m_getStorageAreaCommand.getStorageAreas();
+        long start = System.currentTimeMillis();
+        List bundles = new ArrayList();
+        List tasks = new ArrayList();
         for (int i = 0; i < infos.length; i++) {
             if (isCancelled()) {
                 throw new DeploymentException(DeploymentException.CODE_CANCELLED);
             }
             Bundle bundle = target.getBundle(infos[i].getSymbolicName());
-            if (bundle != null) {
+            if (bundle != null && isTouched(session, infos[i])) {
                 File root = (File) storageAreas.get(bundle.getSymbolicName());
                 if (root != null) {
-                    File snapshot = context.getDataFile("snapshots");
-                    snapshot.mkdirs();
-                    snapshot = new File(snapshot, infos[i].getSymbolicName());
-                    try {
-                        snapshot.createNewFile();
-                        store(root, snapshot);
-                        addRollback(new RestoreSnapshotRunnable(snapshot, root));
-                        addCommit(new DeleteSnapshotRunnable(snapshot));
-                    }
-                    catch (IOException e) {
-                        snapshot.delete();
-                    }
+                    bundles.add(bundle);
+                    tasks.add(new SyncTask(root, getSnapshot(context, bundle.getSymbolicName())));
                 } else {
-                    session.getLog().log(LogService.LOG_WARNING, "Could not retrieve storage area of bundle '" + bundle.getSymbolicName() + "', skipping it.");
+                    session.getLog().log(LogService.LOG_WARNING, "Could not retrieve storage area of bundle '" + bundle.getSymbolicName() + "', its storage area will not be rolled back.");
                 }
             }
         }
-    }
 
-    private void delete(File root, boolean deleteRoot) {
-        if (root.isDirectory()) {
-            File[] childs = root.listFiles();
-            for (int i = 0; i < childs.length; i++) {
-                delete(childs[i], true);
+        // the storage areas are independent of each other, take all snapshots at once
+        List futures = submit(session, tasks);
+        List restores = new ArrayList();
+        long copied = 0;
+        Throwable failure = null;
+        Bundle failed = null;
+        for (int i = 0; i < futures.size(); i++) {
+            Bundle bundle = (Bundle) bundles.get(i);
+            SyncTask task = (SyncTask) tasks.get(i);
+            try {
+                copied += ((Long) ((Future) futures.get(i)).get()).longValue();
+                restores.add(new SyncTask(task.m_target, task.m_source));
+                addCommit(new DeleteSnapshotRunnable(session, task.m_target, bundle));
+            }
+            catch (ExecutionException e) {
+                // wait for the other snapshots, none of them may still be copying when the session fails
+                session.getLog().log(LogService.LOG_ERROR, "Could not take snapshot of the storage area of bundle '" + bundle.getSymbolicName() + "'", e.getCause());
+                if (failure == null) {
+                    failure = e.getCause();
+                    failed = bundle;
+                }
             }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DeploymentException(DeploymentException.CODE_CANCELLED, "Interrupted while taking snapshots");
+            }
+        }
+        if (failure != null) {
+            throw new DeploymentException(DeploymentException.CODE_OTHER_ERROR, "Could not take snapshot of the storage area of bundle '" + failed.getSymbolicName() + "'", failure);
         }
-        if (deleteRoot) {
-            root.delete();
+        if (!restores.isEmpty()) {
+            addRollback(new RestoreSnapshotsRunnable(session, restores));
         }
+        session.getLog().log(LogService.LOG_DEBUG, "Took snapshots of " + restores.size() + " of " + infos.length + " bundles, copied " + copied + " bytes in " + (System.currentTimeMillis() - start) + " ms");
     }
 
-    private void store(File source, File target) throws IOException {
-        ZipOutputStream output = null;
-        try {
-            File[] children = source.listFiles();
-            output = new ZipOutputStream(new FileOutputStream(target));
-            for (int i = 0; i < children.length; i++) {
-                storeRecursive(target, new File(children[i].getName()), output);
-            }
-        }
-        finally {
-            if (output != null) {
-                try {
-                    output.close();
-                }
-                catch (Exception ex) {
-                    // Not much we can do
-                }
-            }
+    private static List submit(DeploymentSessionImpl session, List tasks) {
+        ExecutorService executor = session.getWorkExecutor();
+        List futures = new ArrayList();
+        for (Iterator i = tasks.iterator(); i.hasNext();) {
+            futures.add(executor.submit((Callable) i.next()));
         }
+        return futures;
     }
 
-    private void storeRecursive(File current, File path, ZipOutputStream output) throws IOException {
-        output.putNextEntry(new ZipEntry(path.getPath()));
-        if (current.isDirectory()) {
-            output.closeEntry();
-            File[] childs = current.listFiles();
-            for (int i = 0; i < childs.length; i++) {
-                storeRecursive(childs[i], new File(path, childs[i].getName()), output);
-            }
-        }
-        else {
-            InputStream input = null;
-            try {
-                input = new FileInputStream(current);
-                byte[] buffer = new byte[4096];
-                for (int i = input.read(buffer); i != -1; i = input.read(buffer)) {
-                    output.write(buffer, 0, i);
-                }
-                output.closeEntry();
-            }
-            finally {
-                try {
-                    if (input != null) {
-                        input.close();
-                    }
-                }
-                catch (Exception ex) {
-                    // Not much we can do
-                }
-            }
-        }
+    /**
+     * Determines whether the session touches a bundle of the target deployment package.
+     *
+     * @param session The current deployment session.
+     * @param info The bundle in the target deployment package.
+     * @return <code>true</code> if the bundle is updated or dropped by the session or if it is a customizer.
+     */
+    private boolean isTouched(DeploymentSessionImpl session, BundleInfoImpl info) {
+        return info.isCustomizer() || session.isBundleChanged(info.getSymbolicName());
     }
 
-    private void unpack(File source, File target) throws IOException {
-        ZipInputStream input = null;
-        try {
-            input = new ZipInputStream(new FileInputStream(source));
-            for (ZipEntry entry = input.getNextEntry(); entry != null; entry = input.getNextEntry()) {
-                if (entry.isDirectory()) {
-                    (new File(target, entry.getName())).mkdirs();
-                }
-                else {
-                    OutputStream output = null;
-                    try {
-                        output = new FileOutputStream(target);
-                        byte[] buffer = new byte[4096];
-                        for (int i = input.read(buffer); i > -1; i = input.read(buffer)) {
-                            output.write(buffer, 0, i);
-                        }
-                    }
-                    finally {
-                        if (output != null) {
-                            try {
-                                output.close();
-                            }
-                            catch (Exception ex) {
-                                // Not much we can do
-                            }
-                        }
-                    }
-                }
-                input.closeEntry();
-            }
-        }
-        finally {
-            if (input != null) {
-                try {
-                    input.close();
-                }
-                catch (Exception ex) {
-                    // Not much we can do
-                }
-            }
-        }
+    /**
+     * Determines where the snapshot of the storage area of a bundle is kept.
+     *
+     * @param context The bundle context of the deployment admin.
+     * @param symbolicName The symbolic name of the bundle.
+     * @return The directory mirroring the storage area.
+     */
+    static File getSnapshot(BundleContext context, String symbolicName) {
+        return new File(context.getDataFile(DeploymentAdminImpl.SNAPSHOT_DIR), symbolicName);
     }
 
-    class DeleteSnapshotRunnable implements Runnable {
+    /**
+     * Deletes the snapshot of a bundle in the background once the bundle is uninstalled, or right away if snapshots
+     * are not kept.
+     */
+    static class DeleteSnapshotRunnable implements Runnable {
 
+        private final DeploymentSessionImpl m_session;
         private final File m_snapshot;
+        private final Bundle m_bundle;
 
-        private DeleteSnapshotRunnable(File snapshot) {
+        DeleteSnapshotRunnable(DeploymentSessionImpl session, File snapshot, Bundle bundle) {
+            m_session = session;
             m_snapshot = snapshot;
+            m_bundle = bundle;
         }
 
         public void run() {
-            m_snapshot.delete();
+            if (!m_session.isKeepSnapshots() || m_bundle.getState() == Bundle.UNINSTALLED) {
+                m_session.getJanitor().delete(m_snapshot);
+            }
         }
     }
 
-    private class RestoreSnapshotRunnable implements Runnable {
+    /**
+     * Makes a directory tree identical to another one, the result is the number of bytes copied.
+     */
+    private static class SyncTask implements Callable {
 
-        private final File m_snapshot;
-        private final File m_root;
+        private final File m_source;
+        private final File m_target;
 
-        private RestoreSnapshotRunnable(File snapshot, File root) {
-            m_snapshot = snapshot;
-            m_root = root;
+        private SyncTask(File source, File target) {
+            m_source = source;
+            m_target = target;
+        }
+
+        public Object call() throws IOException {
+            return new Long(DirectoryMirror.sync(m_source, m_target));
+        }
+    }
+
+    /**
+     * Restores the storage areas from their snapshots concurrently. Snapshots that were restored are deleted
+     * afterwards if they are not kept.
+     */
+    private static class RestoreSnapshotsRunnable implements Runnable {
+
+        private final DeploymentSessionImpl m_session;
+        private final List m_restores;
+
+        private RestoreSnapshotsRunnable(DeploymentSessionImpl session, List restores) {
+            m_session = session;
+            m_restores = restores;
         }
 
         public void run() {
-            try {
-                delete(m_root, false);
-                unpack(m_snapshot, m_root);
-            }
-            catch (Exception ex) {
-                // TODO: log this
-            }
-            finally {
-                m_snapshot.delete();
+            long start = System.currentTimeMillis();
+            List futures = submit(m_session, m_restores);
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    ((Future) futures.get(i)).get();
+                    if (!m_session.isKeepSnapshots()) {
+                        m_session.getJanitor().delete(((SyncTask) m_restores.get(i)).m_source);
+                    }
+                }
+                catch (ExecutionException e) {
+                    File root = ((SyncTask) m_restores.get(i)).m_target;
+                    m_session.getLog().log(LogService.LOG_ERROR, "Could not restore storage area " + root.getAbsolutePath() + " from its snapshot", e.getCause());
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
             }
+            m_session.getLog().log(LogService.LOG_DEBUG, "Restored " + m_restores.size() + " storage areas in " + (System.currentTimeMillis() - start) + " ms");
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,126 @@
+package de.akquinet.gomobile.deploymentadmin.spi;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copy of a resource read from the stream of a deployment package, kept until its resource processor gets to it.
+ * Small resources are kept in memory, larger ones in a temporary file that is deleted once the resource is released.
+ */
+class SpooledResource {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final String m_name;
+    private final byte[] m_data;
+    private final int m_length;
+    private final File m_file;
+    private InputStream m_stream;
+
+    private SpooledResource(String name, byte[] data, int length, File file) {
+        m_name = name;
+        m_data = data;
+        m_length = length;
+        m_file = file;
+    }
+
+    /**
+     * Reads a resource completely.
+     *
+     * @param name The name of the resource.
+     * @param input The stream containing the resource, it is not closed.
+     * @param maxMemory The number of bytes up to which the resource is kept in memory.
+     * @param dir The directory the temporary file of a larger resource is created in.
+     * @return The spooled resource.
+     * @throws IOException If the resource could not be read or written.
+     */
+    static SpooledResource spool(String name, InputStream input, int maxMemory, File dir) throws IOException {
+        byte[] data = new byte[Math.min(maxMemory, BUFFER_SIZE)];
+        int length = 0;
+        while (length < maxMemory) {
+            if (length == data.length) {
+                byte[] grown = new byte[Math.min(maxMemory, 2 * data.length)];
+                System.arraycopy(data, 0, grown, 0, length);
+                data = grown;
+            }
+            int count = input.read(data, length, data.length - length);
+            if (count == -1) {
+                return new SpooledResource(name, data, length, null);
+            }
+            length += count;
+        }
+        int next = input.read();
+        if (next == -1) {
+            return new SpooledResource(name, data, length, null);
+        }
+
+        dir.mkdirs();
+        File file = File.createTempFile("resource", null, dir);
+        OutputStream output = null;
+        try {
+            output = new FileOutputStream(file);
+            output.write(data, 0, length);
+            output.write(next);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int count = input.read(buffer); count != -1; count = input.read(buffer)) {
+                output.write(buffer, 0, count);
+            }
+        }
+        catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        finally {
+            if (output != null) {
+                try {
+                    output.close();
+                }
+                catch (IOException e) {
+                    // not much we can do
+                }
+            }
+        }
+        return new SpooledResource(name, null, 0, file);
+    }
+
+    /**
+     * @return The name of the resource.
+     */
+    String getName() {
+        return m_name;
+    }
+
+    /**
+     * @return The stream containing the resource, the same stream is returned until the resource is released.
+     * @throws IOException If the temporary file could not be opened.
+     */
+    InputStream getStream() throws IOException {
+        if (m_stream == null) {
+            m_stream = (m_file == null) ? (InputStream) new ByteArrayInputStream(m_data, 0, m_length) : new FileInputStream(m_file);
+        }
+        return m_stream;
+    }
+
+    /**
+     * Closes the stream of the resource and deletes its temporary file.
+     */
+    void release() {
+        if (m_stream != null) {
+            try {
+                m_stream.close();
+            }
+            catch (IOException e) {
+                // not much we can do
+            }
+            m_stream = null;
+        }
+        if (m_file != null) {
+            m_file.delete();
+        }
+    }
+}
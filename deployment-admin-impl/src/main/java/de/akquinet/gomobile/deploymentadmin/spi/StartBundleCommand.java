@@ -1,10 +1,18 @@
 package de.akquinet.gomobile.deploymentadmin.spi;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
 import org.osgi.framework.FrameworkEvent;
 import org.osgi.framework.FrameworkListener;
+import org.osgi.service.deploymentadmin.DeploymentException;
 import org.osgi.service.log.LogService;
 import org.osgi.service.packageadmin.PackageAdmin;
 
@@ -12,44 +20,131 @@ import de.akquinet.gomobile.deploymentadmin.AbstractDeploymentPackage;
 import de.akquinet.gomobile.deploymentadmin.BundleInfoImpl;
 
 /**
- * Command that starts all bundles described in the source deployment package of a deployment session.
+ * Command that starts all bundles described in the source deployment package of a deployment session. Before
+ * starting them the packages of the bundles that were updated or uninstalled by the session are refreshed.
+ * If parallel start is enabled, bundles that are not wired to each other are started concurrently.
  */
 public class StartBundleCommand extends Command {
 
     private final RefreshPackagesMonitor m_refreshMonitor = new RefreshPackagesMonitor();
-    private static final int REFRESH_TIMEOUT = 10000;
 
-    public void execute(DeploymentSessionImpl session) {
+    public void execute(DeploymentSessionImpl session) throws DeploymentException {
         AbstractDeploymentPackage source = session.getSourceAbstractDeploymentPackage();
-        BundleContext context = session.getBundleContext();
-        PackageAdmin packageAdmin = session.getPackageAdmin();
-        RefreshPackagesListener listener = new RefreshPackagesListener();
         LogService log = session.getLog();
 
-        context.addFrameworkListener(listener);
-        packageAdmin.refreshPackages(null);
-        m_refreshMonitor.waitForRefresh();
-        context.removeFrameworkListener(listener);
+        // only the bundles that were updated or uninstalled can leave stale wirings behind
+        Bundle[] refreshBundles = session.getRefreshBundles();
+        if (refreshBundles.length > 0) {
+            BundleContext context = session.getBundleContext();
+            PackageAdmin packageAdmin = session.getPackageAdmin();
+            RefreshPackagesListener listener = new RefreshPackagesListener();
+            // a concurrent session could otherwise consume our PACKAGES_REFRESHED event
+            synchronized (session.getRefreshLock()) {
+                long start = System.currentTimeMillis();
+                m_refreshMonitor.reset();
+                context.addFrameworkListener(listener);
+                try {
+                    packageAdmin.refreshPackages(refreshBundles);
+                    m_refreshMonitor.waitForRefresh();
+                }
+                finally {
+                    context.removeFrameworkListener(listener);
+                }
+                session.setRefreshDuration(System.currentTimeMillis() - start);
+            }
+            if (isCancelled()) {
+                throw new DeploymentException(DeploymentException.CODE_CANCELLED);
+            }
+            log.log(LogService.LOG_DEBUG, "Refreshed " + refreshBundles.length + " bundle(s) in " + session.getRefreshDuration() + " ms");
+        }
 
         // start source bundles
+        List bundles = new ArrayList();
         BundleInfoImpl[] bundleInfos = source.getOrderedBundleInfos();
         for (int i = 0; i < bundleInfos.length; i++) {
             BundleInfoImpl bundleInfoImpl = bundleInfos[i];
             if(!bundleInfoImpl.isCustomizer()) {
                 Bundle bundle = source.getBundle(bundleInfoImpl.getSymbolicName());
                 if (bundle != null) {
-                    try {
-                        bundle.start();
-                    }
-                    catch (BundleException be) {
-                        log.log(LogService.LOG_WARNING, "Could not start bundle '" + bundle.getSymbolicName() + "'", be);
-                    }
+                    bundles.add(bundle);
                 }
                 else {
                 	log.log(LogService.LOG_WARNING, "Could not start bundle '" + bundleInfoImpl.getSymbolicName() + "' because it is not defined in the framework");
                 }
             }
         }
+
+        if (session.isParallelStart() && bundles.size() > 1) {
+            startInWaves(session, (Bundle[]) bundles.toArray(new Bundle[bundles.size()]));
+        }
+        else {
+            for (Iterator i = bundles.iterator(); i.hasNext();) {
+                new StartBundleRunnable(session, (Bundle) i.next()).run();
+            }
+        }
+    }
+
+    /**
+     * Starts the bundles concurrently on the work executor of the deployment admin. The bundles are resolved
+     * first so their wiring is known, bundles are only started once all bundles they are wired to were started.
+     */
+    private void startInWaves(DeploymentSessionImpl session, Bundle[] bundles) throws DeploymentException {
+        session.getPackageAdmin().resolveBundles(bundles);
+        List waves = new WiringAnalyzer(session.getPackageAdmin(), bundles).getStartWaves();
+        ExecutorService executor = session.getWorkExecutor();
+        for (Iterator i = waves.iterator(); i.hasNext();) {
+            if (isCancelled()) {
+                throw new DeploymentException(DeploymentException.CODE_CANCELLED);
+            }
+            List wave = (List) i.next();
+            List futures = new ArrayList();
+            for (Iterator j = wave.iterator(); j.hasNext();) {
+                futures.add(executor.submit(new StartBundleRunnable(session, (Bundle) j.next())));
+            }
+            waitFor(futures);
+        }
+    }
+
+    private void waitFor(List futures) throws DeploymentException {
+        for (Iterator i = futures.iterator(); i.hasNext();) {
+            try {
+                ((Future) i.next()).get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DeploymentException(DeploymentException.CODE_CANCELLED, "Interrupted while starting bundles");
+            }
+            catch (ExecutionException e) {
+                // the runnable logs its own failures
+            }
+        }
+    }
+
+    /**
+     * Starts a single bundle and records how long it took.
+     */
+    private static class StartBundleRunnable implements Runnable {
+
+        private final DeploymentSessionImpl m_session;
+        private final Bundle m_bundle;
+
+        public StartBundleRunnable(DeploymentSessionImpl session, Bundle bundle) {
+            m_session = session;
+            m_bundle = bundle;
+        }
+
+        public void run() {
+            long start = System.currentTimeMillis();
+            try {
+                m_bundle.start();
+            }
+            catch (BundleException be) {
+                m_session.getLog().log(LogService.LOG_WARNING, "Could not start bundle '" + m_bundle.getSymbolicName() + "'", be);
+            }
+            finally {
+                m_session.setStartDuration(m_bundle, System.currentTimeMillis() - start);
+            }
+        }
     }
 
     /**
@@ -65,6 +160,11 @@ public class StartBundleCommand extends Command {
         }
     }
 
+    public void cancel() {
+        super.cancel();
+        m_refreshMonitor.proceed();
+    }
+
     /**
      * Use this monitor when its desired to wait for the completion of the asynchronous PackageAdmin.refreshPackages() call.
      */
@@ -72,30 +172,25 @@ public class StartBundleCommand extends Command {
         private boolean m_alreadyNotified = false;
 
         /**
-         * Waits for the completion of the PackageAdmin.refreshPackages() call. Because
-         * its not sure whether all OSGi framework implementations implement this method as
-         * specified we have build in a timeout. So if a event about the completion of the
-         * refreshpackages() is never received, we continue after the timeout whether the refresh
-         * was done or not.
+         * Prepares the monitor for the next refreshpackages() call.
+         */
+        public synchronized void reset() {
+            m_alreadyNotified = false;
+        }
+
+        /**
+         * Waits for the completion of the PackageAdmin.refreshPackages() call. The framework signals the completion
+         * with a PACKAGES_REFRESHED event, the wait is only ended early if the command is cancelled.
          */
         public synchronized void waitForRefresh() {
-            if (!m_alreadyNotified) {
-             // TODO: m_log.log(LogService.LOG_DEBUG, "wait for Packages refreshed event");
+            while (!m_alreadyNotified && !isCancelled()) {
                 try {
-                    wait(REFRESH_TIMEOUT);
+                    wait();
                 }
                 catch (InterruptedException ie) {
-                 // TODO: m_log.log(LogService.LOG_INFO, "interrupted while waiting for packages refreshed event", ie);
+                    Thread.currentThread().interrupt();
+                    return;
                 }
-                finally {
-                    // just reset the misted notification variable, this Monitor object might be reused.
-                    m_alreadyNotified = false;
-                }
-            }
-            else {
-                // TODO: m_log.log(LogService.LOG_DEBUG, "won't wait for Packages refreshed event, event is already received");
-                // just reset the misted notification variable, this Monitor object might be reused.
-                m_alreadyNotified = false;
             }
         }
 
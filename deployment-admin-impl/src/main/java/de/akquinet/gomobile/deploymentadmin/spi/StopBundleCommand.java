@@ -1,5 +1,18 @@
 package de.akquinet.gomobile.deploymentadmin.spi;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleException;
 import org.osgi.service.deploymentadmin.BundleInfo;
@@ -7,8 +20,6 @@ import org.osgi.service.deploymentadmin.DeploymentException;
 import org.osgi.service.log.LogService;
 
 import de.akquinet.gomobile.deploymentadmin.AbstractDeploymentPackage;
-import de.akquinet.gomobile.deploymentadmin.BundleInfoImpl;
-import de.akquinet.gomobile.deploymentadmin.DeploymentAdminImpl;
 
 /**
  * Command that stops all bundles described in the target deployment package of a deployment session.
@@ -18,57 +29,113 @@ import de.akquinet.gomobile.deploymentadmin.DeploymentAdminImpl;
  * following system property can be defined: <code>de.akquinet.gomobile.deploymentadmin.stopunaffectedbundle</code>.
  * If this property has value <code>false</code> (case insensitive) then unaffected bundles will not be stopped,
  * in all other cases the bundles will be stopped according to the OSGi specification.
+ * A bundle is unaffected if it is neither changed nor dropped by the source package and is not wired to
+ * such a bundle, directly or through other bundles of the target package.
+ *
+ * If parallel stop is enabled, bundles are stopped concurrently in the reverse order of their wiring.
  */
 public class StopBundleCommand extends Command {
 
     public void execute(DeploymentSessionImpl session) throws DeploymentException {
         AbstractDeploymentPackage target = session.getTargetAbstractDeploymentPackage();
         BundleInfo[] bundleInfos = target.getOrderedBundleInfos();
+        List bundles = new ArrayList();
         for (int i = 0; i < bundleInfos.length; i++) {
-            if (isCancelled()) {
-                throw new DeploymentException(DeploymentException.CODE_CANCELLED);
-            }
             String symbolicName = bundleInfos[i].getSymbolicName();
             Bundle bundle = target.getBundle(symbolicName);
             if (bundle != null) {
-                String stopUnaffectedBundle = session.getBundleContext().getProperty(DeploymentAdminImpl.STOP_UNAFFECTED_BUNDLE_PROP);
-                if (stopUnaffectedBundle != null  && stopUnaffectedBundle.equalsIgnoreCase("false") && omitBundleStop(session, symbolicName)) {
-                    continue;
-                }
-                addRollback(new StartBundleRunnable(bundle));
-                try {
-                    bundle.stop();
-                }
-                catch (BundleException e) {
-                    session.getLog().log(LogService.LOG_WARNING, "Could not stop bundle '" + bundle.getSymbolicName() + "'", e);
-                }
+                bundles.add(bundle);
             }
             else {
                 session.getLog().log(LogService.LOG_WARNING, "Could not stop bundle '" + symbolicName + "' because it was not defined int he framework");
             }
         }
+        if (!session.isStopUnaffectedBundles()) {
+            bundles.retainAll(getAffectedBundles(session, bundles));
+        }
+
+        if (session.isParallelStop() && bundles.size() > 1) {
+            stopInWaves(session, (Bundle[]) bundles.toArray(new Bundle[bundles.size()]));
+            return;
+        }
+        for (Iterator i = bundles.iterator(); i.hasNext();) {
+            if (isCancelled()) {
+                throw new DeploymentException(DeploymentException.CODE_CANCELLED);
+            }
+            Bundle bundle = (Bundle) i.next();
+            addRollback(new StartBundleRunnable(bundle));
+            try {
+                bundle.stop();
+            }
+            catch (BundleException e) {
+                session.getLog().log(LogService.LOG_WARNING, "Could not stop bundle '" + bundle.getSymbolicName() + "'", e);
+            }
+        }
+    }
+
+    /**
+     * Stops the bundles concurrently on the work executor of the deployment admin. Bundles are stopped in the reverse
+     * order of their wiring, a bundle is only stopped once all bundles wired to it were stopped. Every bundle gets the
+     * configured timeout to stop, counted from when stopping it actually starts. A bundle that does not stop in time
+     * is given up on, it fails the session and is left out when the rollback restarts the stopped bundles since it may
+     * still be stopping.
+     */
+    private void stopInWaves(DeploymentSessionImpl session, Bundle[] bundles) throws DeploymentException {
+        List startWaves = new WiringAnalyzer(session.getPackageAdmin(), bundles).getStartWaves();
+        Set abandoned = Collections.synchronizedSet(new HashSet());
+        // restart the bundles in the same waves if the session is rolled back
+        addRollback(new StartWavesRunnable(session, startWaves, abandoned));
+        ExecutorService executor = session.getWorkExecutor();
+        for (ListIterator i = startWaves.listIterator(startWaves.size()); i.hasPrevious();) {
+            if (isCancelled()) {
+                throw new DeploymentException(DeploymentException.CODE_CANCELLED);
+            }
+            List wave = (List) i.previous();
+            List tasks = new ArrayList();
+            for (Iterator j = wave.iterator(); j.hasNext();) {
+                StopBundleRunnable task = new StopBundleRunnable(session, (Bundle) j.next());
+                executor.submit(task);
+                tasks.add(task);
+            }
+            Bundle late = null;
+            for (Iterator j = tasks.iterator(); j.hasNext();) {
+                StopBundleRunnable task = (StopBundleRunnable) j.next();
+                if (!task.await(session.getStopTimeout())) {
+                    session.getLog().log(LogService.LOG_ERROR, "Stopping bundle '" + task.m_bundle.getSymbolicName() + "' did not finish within " + session.getStopTimeout() + " ms, it will not be restarted");
+                    abandoned.add(task.m_bundle);
+                    if (late == null) {
+                        late = task.m_bundle;
+                    }
+                }
+            }
+            if (late != null) {
+                throw new DeploymentException(DeploymentException.CODE_TIMEOUT, "Stopping bundle '" + late.getSymbolicName() + "' did not finish within " + session.getStopTimeout() + " ms");
+            }
+        }
     }
 
     /**
-     * Determines whether stopping a bundle is strictly needed.
+     * Determines the bundles of the target deployment package that are affected by the session. These are the bundles
+     * that are changed or dropped by the source deployment package and all bundles that are wired to them, directly
+     * or through other affected bundles.
      *
      * @param session The current deployment session.
-     * @param symbolicName The symbolic name of the bundle to inspect.
-     *
-     * @return Returns <code>true</code> if <code>Constants.DEPLOYMENTPACKAGE_MISSING</code> is true for the specified bundle in the
-     * source deployment package or if the version of the bundle is the same in both source and target deployment package. Returns
-     * <code>false</code> otherwise.
+     * @param bundles The installed bundles of the target deployment package.
+     * @return <code>Set</code> containing the affected bundles.
      */
-    private boolean omitBundleStop(DeploymentSessionImpl session, String symbolicName) {
-        boolean result = false;
-        BundleInfoImpl sourceBundleInfo = session.getSourceAbstractDeploymentPackage().getBundleInfoByName(symbolicName);
-        BundleInfoImpl targetBundleInfo = session.getSourceAbstractDeploymentPackage().getBundleInfoByName(symbolicName);
-        boolean fixPackageMissing = sourceBundleInfo != null  && sourceBundleInfo.isMissing();
-        boolean sameVersion = (targetBundleInfo != null && sourceBundleInfo != null && targetBundleInfo.getVersion().equals(sourceBundleInfo.getVersion()));
-        if (fixPackageMissing || sameVersion) {
-            result = true;
+    private Set getAffectedBundles(DeploymentSessionImpl session, List bundles) {
+        List changed = new ArrayList();
+        for (Iterator i = bundles.iterator(); i.hasNext();) {
+            Bundle bundle = (Bundle) i.next();
+            if (session.isBundleChanged(bundle.getSymbolicName())) {
+                changed.add(bundle);
+            }
+        }
+        if (changed.isEmpty()) {
+            return new HashSet();
         }
-        return result;
+        Bundle[] all = (Bundle[]) bundles.toArray(new Bundle[bundles.size()]);
+        return new WiringAnalyzer(session.getPackageAdmin(), all).getAffectedBundles(changed);
     }
 
     private class StartBundleRunnable implements Runnable {
@@ -90,5 +157,115 @@ public class StopBundleCommand extends Command {
         }
 
     }
-}
 
+    private static class StopBundleRunnable implements Runnable {
+
+        private final DeploymentSessionImpl m_session;
+        private final Bundle m_bundle;
+        private final CountDownLatch m_started = new CountDownLatch(1);
+        private final CountDownLatch m_done = new CountDownLatch(1);
+        private volatile long m_startTime;
+
+        public StopBundleRunnable(DeploymentSessionImpl session, Bundle bundle) {
+            m_session = session;
+            m_bundle = bundle;
+        }
+
+        public void run() {
+            m_startTime = System.currentTimeMillis();
+            m_started.countDown();
+            try {
+                m_bundle.stop();
+            }
+            catch (BundleException e) {
+                m_session.getLog().log(LogService.LOG_WARNING, "Could not stop bundle '" + m_bundle.getSymbolicName() + "'", e);
+            }
+            catch (RuntimeException e) {
+                m_session.getLog().log(LogService.LOG_WARNING, "Could not stop bundle '" + m_bundle.getSymbolicName() + "'", e);
+            }
+            finally {
+                m_done.countDown();
+            }
+        }
+
+        /**
+         * Waits for the bundle to stop, the time the task spends queued on the executor does not count.
+         *
+         * @param timeout Number of milliseconds stopping the bundle may take.
+         * @return True if the bundle is done stopping.
+         */
+        public boolean await(long timeout) {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        m_started.await();
+                        return m_done.await(m_startTime + timeout - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                    }
+                    catch (InterruptedException e) {
+                        // the rollback must not touch a bundle that is still stopping
+                        interrupted = true;
+                    }
+                }
+            }
+            finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts bundles wave by wave, the bundles of a wave are started concurrently. Bundles that were given up on
+     * while stopping are skipped.
+     */
+    private static class StartWavesRunnable implements Runnable {
+
+        private final DeploymentSessionImpl m_session;
+        private final List m_waves;
+        private final Set m_abandoned;
+
+        public StartWavesRunnable(DeploymentSessionImpl session, List waves, Set abandoned) {
+            m_session = session;
+            m_waves = waves;
+            m_abandoned = abandoned;
+        }
+
+        public void run() {
+            ExecutorService executor = m_session.getWorkExecutor();
+            for (Iterator i = m_waves.iterator(); i.hasNext();) {
+                List futures = new ArrayList();
+                for (Iterator j = ((List) i.next()).iterator(); j.hasNext();) {
+                    final Bundle bundle = (Bundle) j.next();
+                    if (m_abandoned.contains(bundle)) {
+                        m_session.getLog().log(LogService.LOG_WARNING, "Not restarting bundle '" + bundle.getSymbolicName() + "' because it did not stop in time");
+                        continue;
+                    }
+                    futures.add(executor.submit(new Runnable() {
+                        public void run() {
+                            try {
+                                bundle.start();
+                            }
+                            catch (BundleException e) {
+                                m_session.getLog().log(LogService.LOG_WARNING, "Could not restart bundle '" + bundle.getSymbolicName() + "'", e);
+                            }
+                        }
+                    }));
+                }
+                for (Iterator j = futures.iterator(); j.hasNext();) {
+                    try {
+                        ((Future) j.next()).get();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    catch (ExecutionException e) {
+                        // logged by the task
+                    }
+                }
+            }
+        }
+    }
+}
@@ -34,6 +34,7 @@ public class UninstallBundleCommand extends Command {
             Bundle bundle = target.getBundle(symbolicName);
             if (bundle != null) {
                 addRollback(new InstallBundleRunnable(session, bundle));
+                addCommit(new SnapshotCommand.DeleteSnapshotRunnable(session, SnapshotCommand.getSnapshot(session.getBundleContext(), symbolicName), bundle));
                 try {
                     //bundle.uninstall();
                     session.uninstallBundle(bundle, target);
@@ -1,7 +1,12 @@
 package de.akquinet.gomobile.deploymentadmin.spi;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -13,13 +18,15 @@ import org.osgi.service.deploymentadmin.DeploymentException;
 
 import de.akquinet.gomobile.deploymentadmin.AbstractDeploymentPackage;
 import de.akquinet.gomobile.deploymentadmin.AbstractInfo;
+import de.akquinet.gomobile.deploymentadmin.BlobStore;
 import de.akquinet.gomobile.deploymentadmin.BundleInfoImpl;
 import de.akquinet.gomobile.deploymentadmin.Constants;
+import de.akquinet.gomobile.deploymentadmin.DeploymentAdminImpl;
 
 /**
  * Command that installs all bundles described in the source deployment package of a deployment
  * session. If a bundle was already defined in the target deployment package of the same session
- * it is updated, otherwise the bundle is simply installed.
+ * it is updated when its version or its content changed, otherwise the bundle is simply installed.
  */
 public class UpdateCommand extends Command {
 
@@ -62,10 +69,11 @@ public class UpdateCommand extends Command {
                         Version sourceVersion = bundleInfo.getVersion();
                         Version targetVersion = Version.parseVersion((String) bundle.getHeaders().get(org.osgi.framework.Constants.BUNDLE_VERSION));
                         if (!sourceVersion.equals(targetVersion)) {
+                            addOwnership(session, bundle, source);
                             bundle = session.updateBundle(bundle, new BundleInputStream(source.getCurrentEntryStream()), session.getSourceAbstractDeploymentPackage());
                             addRollback(new UpdateBundleRunnable(session, bundle, targetPackage, bundleInfo.getSymbolicName()));
                         } else {
-                        	session.addOwnership(bundle, session.getSourceAbstractDeploymentPackage());
+                            bundle = updateChangedBundle(session, bundle, bundleInfo);
                         }
                     }
                 }
@@ -85,6 +93,89 @@ public class UpdateCommand extends Command {
         }
     }
 
+    /**
+     * Handles a bundle whose version did not change. The bundle is only updated if its content differs from the
+     * installed one, which is decided by the digests of both. If the manifest of the source deployment package
+     * does not declare a digest the bundle is spooled to disk while calculating it. If the digest of the installed
+     * bundle is unknown the bundle is considered unchanged, as it was before digests were recorded.
+     */
+    private Bundle updateChangedBundle(DeploymentSessionImpl session, Bundle bundle, BundleInfoImpl bundleInfo) throws BundleException, IOException {
+        AbstractDeploymentPackage source = session.getSourceAbstractDeploymentPackage();
+        AbstractDeploymentPackage targetPackage = session.getTargetAbstractDeploymentPackage();
+        String targetDigest = targetPackage.getBundleDigest(bundleInfo.getSymbolicName());
+        if (targetDigest == null) {
+            addOwnership(session, bundle, source);
+            return bundle;
+        }
+
+        File spool = null;
+        InputStream spoolInput = null;
+        try {
+            String sourceDigest = source.getBundleDigest(bundleInfo.getSymbolicName());
+            if (sourceDigest == null) {
+                File tempDir = session.getBundleContext().getDataFile(DeploymentAdminImpl.TEMP_DIR);
+                tempDir.mkdirs();
+                spool = File.createTempFile("bundle", "", tempDir);
+                MessageDigest digest = BlobStore.newDigest();
+                AbstractDeploymentPackage.write(new DigestInputStream(source.getCurrentEntryStream(), digest), new FileOutputStream(spool));
+                sourceDigest = BlobStore.toHex(digest.digest());
+            }
+            addOwnership(session, bundle, source);
+            if (targetDigest.equals(sourceDigest)) {
+                return bundle;
+            }
+            InputStream content = source.getCurrentEntryStream();
+            if (spool != null) {
+                spoolInput = new FileInputStream(spool);
+                content = spoolInput;
+            }
+            bundle = session.updateBundle(bundle, new BundleInputStream(content), source);
+            addRollback(new UpdateBundleRunnable(session, bundle, targetPackage, bundleInfo.getSymbolicName()));
+            return bundle;
+        }
+        finally {
+            // BundleInputStream does not pass close() on, it must not close the package stream
+            if (spoolInput != null) {
+                try {
+                    spoolInput.close();
+                }
+                catch (IOException e) {
+                    // Not much we can do
+                }
+            }
+            if (spool != null) {
+                spool.delete();
+            }
+        }
+    }
+
+    /**
+     * Makes the source deployment package an owner of a bundle, the ownership is persisted so it is removed again
+     * if the session is rolled back.
+     */
+    private void addOwnership(DeploymentSessionImpl session, Bundle bundle, AbstractDeploymentPackage source) {
+        if (session.addOwnership(bundle, source)) {
+            addRollback(new RemoveOwnershipRunnable(session, bundle, source));
+        }
+    }
+
+    private static class RemoveOwnershipRunnable implements Runnable {
+
+        private final DeploymentSessionImpl m_session;
+        private final Bundle m_bundle;
+        private final AbstractDeploymentPackage m_package;
+
+        public RemoveOwnershipRunnable(DeploymentSessionImpl session, Bundle bundle, AbstractDeploymentPackage dp) {
+            m_session = session;
+            m_bundle = bundle;
+            m_package = dp;
+        }
+
+        public void run() {
+            m_session.removeOwnership(m_bundle, m_package);
+        }
+    }
+
     private static class UninstallBundleRunnable implements Runnable {
 
         private final Bundle m_bundle;
@@ -0,0 +1,136 @@
+package de.akquinet.gomobile.deploymentadmin.spi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.framework.Bundle;
+import org.osgi.service.packageadmin.ExportedPackage;
+import org.osgi.service.packageadmin.PackageAdmin;
+import org.osgi.service.packageadmin.RequiredBundle;
+
+/**
+ * Determines how a set of bundles depends on each other through their wiring as reported by the
+ * <code>PackageAdmin</code>. A bundle depends on another bundle of the set if it imports a package exported
+ * by it or requires it. Only resolved bundles are wired, so the bundles should be resolved first.
+ */
+public class WiringAnalyzer {
+
+    private final Bundle[] m_bundles;
+    private final Map/*Bundle -> Set<Bundle>*/ m_dependencies = new HashMap();
+
+    /**
+     * Creates an instance of this class and analyzes the wiring of the specified bundles.
+     *
+     * @param packageAdmin The package admin providing the wiring.
+     * @param bundles The bundles to analyze, the order is kept where the wiring does not require another one.
+     */
+    public WiringAnalyzer(PackageAdmin packageAdmin, Bundle[] bundles) {
+        m_bundles = bundles;
+        for (int i = 0; i < bundles.length; i++) {
+            m_dependencies.put(bundles[i], new LinkedHashSet());
+        }
+        for (int i = 0; i < bundles.length; i++) {
+            Bundle provider = bundles[i];
+            ExportedPackage[] exports = packageAdmin.getExportedPackages(provider);
+            if (exports != null) {
+                for (int j = 0; j < exports.length; j++) {
+                    addDependents(provider, exports[j].getImportingBundles());
+                }
+            }
+            String symbolicName = provider.getSymbolicName();
+            RequiredBundle[] required = (symbolicName == null) ? null : packageAdmin.getRequiredBundles(symbolicName);
+            if (required != null) {
+                for (int j = 0; j < required.length; j++) {
+                    if (provider.equals(required[j].getBundle())) {
+                        addDependents(provider, required[j].getRequiringBundles());
+                    }
+                }
+            }
+        }
+    }
+
+    private void addDependents(Bundle provider, Bundle[] dependents) {
+        if (dependents == null) {
+            return;
+        }
+        for (int i = 0; i < dependents.length; i++) {
+            Set dependencies = (Set) m_dependencies.get(dependents[i]);
+            if (dependencies != null && !provider.equals(dependents[i])) {
+                dependencies.add(provider);
+            }
+        }
+    }
+
+    /**
+     * Determines the bundles affected by a change of some of the bundles. A bundle is affected if it is changed
+     * itself or if it depends on an affected bundle, directly or through other bundles of the set.
+     *
+     * @param changed <code>Collection</code> containing the changed bundles.
+     * @return <code>Set</code> containing the affected bundles, in the order the bundles were specified.
+     */
+    public Set getAffectedBundles(Collection changed) {
+        Set affected = new LinkedHashSet(changed);
+        boolean grown = true;
+        while (grown) {
+            grown = false;
+            for (int i = 0; i < m_bundles.length; i++) {
+                Bundle bundle = m_bundles[i];
+                if (!affected.contains(bundle)) {
+                    for (Iterator j = ((Set) m_dependencies.get(bundle)).iterator(); j.hasNext();) {
+                        if (affected.contains(j.next())) {
+                            affected.add(bundle);
+                            grown = true;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        Set result = new LinkedHashSet();
+        for (int i = 0; i < m_bundles.length; i++) {
+            if (affected.contains(m_bundles[i])) {
+                result.add(m_bundles[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Groups the bundles in waves that can be started one after another, the bundles within a wave do not
+     * depend on each other and only depend on bundles of earlier waves. Bundles that depend on each other in
+     * a cycle end up in the last wave.
+     *
+     * @return <code>List</code> containing a <code>List</code> of bundles for every wave.
+     */
+    public List getStartWaves() {
+        List waves = new ArrayList();
+        Set done = new LinkedHashSet();
+        List remaining = new ArrayList();
+        for (int i = 0; i < m_bundles.length; i++) {
+            remaining.add(m_bundles[i]);
+        }
+        while (!remaining.isEmpty()) {
+            List wave = new ArrayList();
+            for (Iterator i = remaining.iterator(); i.hasNext();) {
+                Bundle bundle = (Bundle) i.next();
+                if (done.containsAll((Set) m_dependencies.get(bundle))) {
+                    wave.add(bundle);
+                }
+            }
+            if (wave.isEmpty()) {
+                // cyclic dependencies, there is no order that satisfies them
+                wave.addAll(remaining);
+            }
+            remaining.removeAll(wave);
+            done.addAll(wave);
+            waves.add(wave);
+        }
+        return waves;
+    }
+}
@@ -0,0 +1,108 @@
+package de.akquinet.gomobile.deploymentadmin;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import de.akquinet.gomobile.deploymentadmin.BlobStore.BlobOutputStream;
+
+public class BlobStoreTest {
+
+    @Test
+    public void testSharedContent() throws IOException {
+        BlobStore store = new BlobStore(createDir("shared"));
+        String first = store(store, "content");
+        String second = store(store, "content");
+        Assert.assertEquals(first, second);
+        Assert.assertTrue(store.getFile(first).isFile());
+
+        store.release(first);
+        Assert.assertTrue(store.getFile(first).isFile());
+        store.release(second);
+        Assert.assertFalse(store.getFile(first).exists());
+    }
+
+    @Test
+    public void testReplace() throws IOException {
+        File dir = createDir("replace");
+        BlobStore store = new BlobStore(new File(dir, "blobs"));
+        String installed = store(store, "version 1");
+        String received = store(store, "version 2");
+        File target = createPackage(new File(dir, "installed"), installed);
+        File source = createPackage(new File(dir, "received"), received);
+        PackageIndex sourceEntries = PackageIndex.read(new File(source, DeploymentAdminImpl.PACKAGEINDEX_FILE));
+
+        ExplodingOutputtingInputStream.replace(target, source, store);
+        Assert.assertFalse(store.getFile(installed).exists());
+        Assert.assertTrue(store.getFile(received).isFile());
+
+        // the received package gives up its own references once it was installed
+        store.release(sourceEntries);
+        Assert.assertTrue(store.getFile(received).isFile());
+        store.release(received);
+        Assert.assertFalse(store.getFile(received).exists());
+    }
+
+    @Test
+    public void testReplaceFailure() throws IOException {
+        File dir = createDir("replacefailure");
+        BlobStore store = new BlobStore(new File(dir, "blobs"));
+        String received = store(store, "version 2");
+        File source = createPackage(new File(dir, "received"), received);
+        // the received package can not be moved into a directory that does not exist
+        File target = new File(dir, "missing/installed");
+
+        try {
+            ExplodingOutputtingInputStream.replace(target, source, store);
+            Assert.fail("Package moved to a missing directory");
+        } catch (IOException e) {
+            // Ok
+        }
+
+        // the references retained for the installation were released again, only the received package refers to the blob
+        Assert.assertTrue(store.getFile(received).isFile());
+        store.release(received);
+        Assert.assertFalse(store.getFile(received).exists());
+    }
+
+    private static String store(BlobStore store, String content) throws IOException {
+        BlobOutputStream output = store.create(StorageCodec.STORED);
+        try {
+            output.write(content.getBytes("UTF-8"));
+            return output.store().getKey();
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    private static File createPackage(File dir, String key) throws IOException {
+        dir.mkdirs();
+        PackageIndex index = new PackageIndex();
+        index.add("bundle.jar");
+        index.setAttribute("bundle.jar", PackageIndex.CODEC, StorageCodec.STORED.getName());
+        index.setAttribute("bundle.jar", PackageIndex.SHA256, key);
+        index.write(new File(dir, DeploymentAdminImpl.PACKAGEINDEX_FILE));
+        return dir;
+    }
+
+    private static File createDir(String name) {
+        File dir = new File("target/blobstore-test/" + name);
+        delete(dir);
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static void delete(File root) {
+        File[] childs = root.listFiles();
+        if (childs != null) {
+            for (int i = 0; i < childs.length; i++) {
+                delete(childs[i]);
+            }
+        }
+        root.delete();
+    }
+}
@@ -0,0 +1,85 @@
+package de.akquinet.gomobile.deploymentadmin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.osgi.service.deploymentadmin.DeploymentException;
+
+import de.akquinet.gomobile.deploymentadmin.spi.DeploymentSessionImpl;
+import de.akquinet.gomobile.deploymentadmin.spi.FinishSourceCommand;
+
+public class ExplodingOutputtingInputStreamTest {
+
+    @Test
+    public void testStoreFailureFailsSession() throws Exception {
+        File dir = new File("target/exploder-test/failure");
+        dir.mkdirs();
+        // the blob store can not create its directories below a file
+        File root = new File(dir, "blobs");
+        new FileOutputStream(root).close();
+        BlobStore store = new BlobStore(root);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CountDownLatch latch = new CountDownLatch(1);
+        try {
+            // hold the exploder back until the package was read, the pipe is large enough to buffer all of it
+            executor.submit(new Runnable() {
+                public void run() {
+                    try {
+                        latch.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            ExplodingOutputtingInputStream exploder = new ExplodingOutputtingInputStream(new ByteArrayInputStream(createPackage()),
+                new File(dir, DeploymentAdminImpl.PACKAGEINDEX_FILE), store, new StoragePolicy(StoragePolicy.MODE_STORED, 0), executor, 64 * 1024);
+            StreamDeploymentPackage source = new StreamDeploymentPackage(new JarInputStream(exploder), null, null);
+            latch.countDown();
+
+            DeploymentSessionImpl session = new DeploymentSessionImpl(source, null, new ArrayList(), null);
+            try {
+                new FinishSourceCommand().execute(session);
+                Assert.fail("Package that could not be stored was accepted");
+            } catch (DeploymentException e) {
+                Assert.assertEquals(DeploymentException.CODE_OTHER_ERROR, e.getCode());
+            }
+        }
+        finally {
+            latch.countDown();
+            executor.shutdown();
+        }
+    }
+
+    private static byte[] createPackage() throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes main = manifest.getMainAttributes();
+        main.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        main.putValue(Constants.DEPLOYMENTPACKAGE_SYMBOLICMAME, "my.dp");
+        main.putValue(Constants.DEPLOYMENTPACKAGE_VERSION, "1.0.0");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JarOutputStream output = new JarOutputStream(bytes, manifest);
+        output.putNextEntry(new JarEntry("data/entry.txt"));
+        output.write(new byte[1024]);
+        output.closeEntry();
+        output.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,80 @@
+package de.akquinet.gomobile.deploymentadmin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class OwnershipIndexTest {
+
+    @Test
+    public void testJournalReplay() throws IOException {
+        File file = createFile("replay");
+        OwnershipIndex index = new OwnershipIndex(file);
+        Assert.assertFalse(index.load());
+        Assert.assertTrue(index.add("my.bundle", "dp1"));
+        Assert.assertTrue(index.add("my.bundle", "dp2"));
+        Assert.assertFalse(index.add("my.bundle", "dp2"));
+        Assert.assertTrue(index.add("other.bundle", "dp1"));
+        Assert.assertTrue(index.remove("other.bundle", "dp1"));
+        // the index is not closed, as if the framework crashed
+
+        OwnershipIndex loaded = new OwnershipIndex(file);
+        Assert.assertTrue(loaded.load());
+        Assert.assertEquals(2, loaded.count("my.bundle"));
+        Assert.assertTrue(loaded.isOwner("my.bundle", "dp1"));
+        Assert.assertTrue(loaded.isOwner("my.bundle", "dp2"));
+        Assert.assertEquals(0, loaded.count("other.bundle"));
+        loaded.close();
+        index.close();
+    }
+
+    @Test
+    public void testTornJournalLine() throws IOException {
+        File file = createFile("torn");
+        OwnershipIndex index = new OwnershipIndex(file);
+        index.load();
+        index.add("my.bundle", "dp1");
+        index.close();
+
+        // the last change was only partially written when the framework crashed
+        OutputStream journal = new FileOutputStream(file.getPath() + ".journal", true);
+        try {
+            journal.write("+\tother.bun".getBytes("UTF-8"));
+        }
+        finally {
+            journal.close();
+        }
+
+        OwnershipIndex loaded = new OwnershipIndex(file);
+        Assert.assertTrue(loaded.load());
+        Assert.assertTrue(loaded.isOwner("my.bundle", "dp1"));
+        Assert.assertEquals(0, loaded.count("other.bun"));
+        Assert.assertEquals(0, loaded.count("other.bundle"));
+
+        // the torn line is gone once the journal was compacted
+        loaded.add("other.bundle", "dp2");
+        loaded.close();
+        OwnershipIndex reloaded = new OwnershipIndex(file);
+        reloaded.load();
+        Assert.assertTrue(reloaded.isOwner("my.bundle", "dp1"));
+        Assert.assertTrue(reloaded.isOwner("other.bundle", "dp2"));
+        reloaded.close();
+    }
+
+    private static File createFile(String name) {
+        File dir = new File("target/ownership-test/" + name);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                files[i].delete();
+            }
+        }
+        dir.mkdirs();
+        return new File(dir, "ownership.txt");
+    }
+}
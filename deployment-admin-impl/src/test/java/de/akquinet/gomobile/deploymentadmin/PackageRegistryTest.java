@@ -0,0 +1,121 @@
+package de.akquinet.gomobile.deploymentadmin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class PackageRegistryTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        PackageRegistry registry = new PackageRegistry(createFile("roundtrip"));
+        Assert.assertNull(registry.load());
+        registry.write(createEntries());
+
+        List entries = new PackageRegistry(registryFile("roundtrip")).load();
+        Assert.assertNotNull(entries);
+        Assert.assertEquals(1, entries.size());
+        PackageRegistry.Entry entry = (PackageRegistry.Entry) entries.get(0);
+        Assert.assertEquals("my.dp", entry.getName());
+        Assert.assertEquals(2, entry.getIndex().getPaths().size());
+        Assert.assertEquals("abc", entry.getIndex().getAttribute("bundle.jar", PackageIndex.SHA256));
+        Manifest manifest = entry.getManifest();
+        Assert.assertEquals("1.0.0", manifest.getMainAttributes().getValue(Constants.DEPLOYMENTPACKAGE_VERSION));
+        Assert.assertEquals("my.bundle", manifest.getAttributes("bundle.jar").getValue(Constants.BUNDLE_SYMBOLICNAME));
+    }
+
+    @Test
+    public void testStaleRegistry() throws IOException {
+        File file = createFile("stale");
+        new PackageRegistry(file).write(createEntries());
+
+        // loading marks the registry as stale until it is written again
+        Assert.assertNotNull(new PackageRegistry(file).load());
+        Assert.assertTrue(new File(file.getPath() + ".dirty").exists());
+
+        // the framework did not stop properly
+        Assert.assertNull(new PackageRegistry(file).load());
+
+        PackageRegistry registry = new PackageRegistry(file);
+        registry.write(createEntries());
+        Assert.assertFalse(new File(file.getPath() + ".dirty").exists());
+        Assert.assertNotNull(new PackageRegistry(file).load());
+    }
+
+    @Test
+    public void testCorruptRegistry() throws IOException {
+        File file = createFile("corrupt");
+        new PackageRegistry(file).write(createEntries());
+
+        // flip a byte in the body, the checksum no longer matches
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xff);
+        }
+        finally {
+            raf.close();
+        }
+        Assert.assertNull(new PackageRegistry(file).load());
+    }
+
+    @Test
+    public void testTruncatedRegistry() throws IOException {
+        File file = createFile("truncated");
+        new PackageRegistry(file).write(createEntries());
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() / 2);
+        }
+        finally {
+            raf.close();
+        }
+        Assert.assertNull(new PackageRegistry(file).load());
+    }
+
+    private static File registryFile(String name) {
+        return new File("target/registry-test/" + name + "/registry.bin");
+    }
+
+    private static File createFile(String name) {
+        File file = registryFile(name);
+        File dir = file.getParentFile();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                files[i].delete();
+            }
+        }
+        dir.mkdirs();
+        return file;
+    }
+
+    private static List createEntries() throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putValue(Constants.DEPLOYMENTPACKAGE_SYMBOLICMAME, "my.dp");
+        manifest.getMainAttributes().putValue(Constants.DEPLOYMENTPACKAGE_VERSION, "1.0.0");
+        Attributes bundle = new Attributes();
+        bundle.putValue(Constants.BUNDLE_SYMBOLICNAME, "my.bundle");
+        manifest.getEntries().put("bundle.jar", bundle);
+
+        PackageIndex index = new PackageIndex();
+        index.add("META-INF/MANIFEST.MF");
+        index.add("bundle.jar");
+        index.setAttribute("bundle.jar", PackageIndex.SHA256, "abc");
+
+        List entries = new ArrayList();
+        entries.add(PackageRegistry.createEntry("my.dp", index, manifest));
+        return entries;
+    }
+}
@@ -0,0 +1,111 @@
+package de.akquinet.gomobile.deploymentadmin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class RingBufferPipeTest {
+
+    @Test
+    public void testWrapAround() throws IOException {
+        RingBufferPipe pipe = new RingBufferPipe(8);
+        OutputStream output = pipe.getOutputStream();
+        InputStream input = pipe.getInputStream();
+
+        output.write(new byte[] {1, 2, 3, 4, 5, 6}, 0, 6);
+        byte[] buffer = new byte[8];
+        Assert.assertEquals(6, input.read(buffer, 0, 6));
+
+        // the second write wraps around the end of the buffer
+        output.write(new byte[] {7, 8, 9, 10, 11}, 0, 5);
+        Assert.assertEquals(5, input.available());
+        Assert.assertEquals(5, input.read(buffer, 0, 8));
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(7 + i, buffer[i]);
+        }
+    }
+
+    @Test
+    public void testWriterBlocksUntilRead() throws Exception {
+        final RingBufferPipe pipe = new RingBufferPipe(4);
+        final byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    pipe.getOutputStream().write(data, 0, data.length);
+                    pipe.getOutputStream().close();
+                }
+                catch (IOException e) {
+                    // the reader fails on missing data
+                }
+            }
+        };
+        writer.start();
+
+        InputStream input = pipe.getInputStream();
+        byte[] buffer = new byte[3];
+        int pos = 0;
+        for (int i = input.read(buffer, 0, buffer.length); i != -1; i = input.read(buffer, 0, buffer.length)) {
+            for (int j = 0; j < i; j++) {
+                Assert.assertEquals(data[pos++], buffer[j]);
+            }
+        }
+        Assert.assertEquals(data.length, pos);
+        writer.join();
+    }
+
+    @Test
+    public void testClosedWriter() throws IOException {
+        RingBufferPipe pipe = new RingBufferPipe(8);
+        pipe.getOutputStream().write(42);
+        pipe.getOutputStream().close();
+
+        // data written before the close is still delivered
+        Assert.assertEquals(42, pipe.getInputStream().read());
+        Assert.assertEquals(-1, pipe.getInputStream().read());
+
+        try {
+            pipe.getOutputStream().write(1);
+            Assert.fail("Write to a closed pipe");
+        } catch (IOException e) {
+            // Ok
+        }
+    }
+
+    @Test
+    public void testClosedReader() throws IOException {
+        RingBufferPipe pipe = new RingBufferPipe(4);
+        pipe.getInputStream().close();
+
+        // the writer finishes its source, the data is discarded
+        pipe.getOutputStream().write(new byte[16], 0, 16);
+
+        try {
+            pipe.getInputStream().read();
+            Assert.fail("Read from a closed pipe");
+        } catch (IOException e) {
+            // Ok
+        }
+    }
+
+    @Test
+    public void testBrokenPipe() throws IOException {
+        RingBufferPipe pipe = new RingBufferPipe(4);
+        IOException failure = new IOException("disk full");
+        pipe.fail(failure);
+
+        try {
+            pipe.getOutputStream().write(new byte[16], 0, 16);
+            Assert.fail("Write to a broken pipe");
+        } catch (IOException e) {
+            Assert.assertSame(failure, e.getCause());
+        }
+    }
+}
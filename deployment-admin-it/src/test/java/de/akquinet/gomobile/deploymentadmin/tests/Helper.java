@@ -134,6 +134,28 @@ public class Helper {
         }
     }
 
+    /**
+     * Creates a bundle with the same symbolic name and version as <code>createBundleV1</code> but with different content.
+     */
+    public static File createBundleV1Rebuilt() {
+        File file = new File("target/dp-test/bundle-v1-rebuilt.jar");
+        if (file.exists()) {
+            return file;
+        } else {
+            file.getParentFile().mkdirs();
+            return newBundle()
+            .addClass( MyActivator.class )
+            .prepare(
+                    withBnd()
+                    .set( Constants.BUNDLE_SYMBOLICNAME, "de.akquinet.gomobile.bundle" )
+                    .set( Constants.IMPORT_PACKAGE, "*" )
+                    .set (Constants.BUNDLE_VERSION, "1.0.0")
+                    .set( Constants.BUNDLE_DESCRIPTION, "rebuilt" )
+                    .set( Constants.BUNDLE_ACTIVATOR, MyActivator.class.getName() )
+            ).build( asFile(file));
+        }
+    }
+
     public static File createBundleV2() {
         File file = new File("target/dp-test/bundle-v2.jar");
         if (file.exists()) {
@@ -22,6 +22,7 @@ import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
 import org.osgi.service.deploymentadmin.DeploymentAdmin;
 import org.osgi.service.deploymentadmin.DeploymentException;
 import org.osgi.service.deploymentadmin.DeploymentPackage;
@@ -40,6 +41,7 @@ public class NoStopUnaffectedBundleTest extends Helper {
 
         String orig = createDPVersion1().toExternalForm();
         String rembundle = createDPRemoveBundle().toExternalForm();
+        String updatebundle = createDPBundleUpdate().toExternalForm();
 
 
            Option[] opt =  options(
@@ -47,6 +49,7 @@ public class NoStopUnaffectedBundleTest extends Helper {
                    systemProperty( "org.osgi.framework.storage.clean" ).value( "onFirstInit" ),
                    systemProperty("dpv1").value(orig),
                    systemProperty("rem").value(rembundle),
+                   systemProperty("dpv2").value(updatebundle),
                    Helper.getDPBundles(),
                    systemProperty("de.akquinet.gomobile.deploymentadmin.stopunaffectedbundle").value("false")
                    );
@@ -99,6 +102,57 @@ public class NoStopUnaffectedBundleTest extends Helper {
 
     }
 
+    @Test
+    public void updateBundle() throws DeploymentException, IOException {
+        DeploymentAdmin admin = (DeploymentAdmin) context.getService(context.getServiceReference(DeploymentAdmin.class.getName()));
+        Assert.assertNotNull(admin);
+
+        URL d = new URL((String)context.getProperty("dpv1"));
+        DeploymentPackage dp = admin.installDeploymentPackage(d.openStream());
+        Assert.assertEquals("1.0.0", dp.getVersion().toString());
+
+        // Check installed bundle
+        Bundle b1 = getBundleByName(context, "org.apache.felix.bundlerepository");
+        Assert.assertNotNull(b1);
+
+        Bundle b2 = getBundleByName(context, "de.akquinet.gomobile.bundle");
+        Assert.assertNotNull(b2);
+
+        Assert.assertEquals(Bundle.ACTIVE, b2.getState());
+        Assert.assertEquals(Bundle.ACTIVE, b1.getState());
+
+        BundleEventCollector collector = new BundleEventCollector();
+        context.addBundleListener(collector);
+
+        URL d2 = new URL((String)context.getProperty("dpv2"));
+        DeploymentPackage dp2 = admin.installDeploymentPackage(d2.openStream());
+        Assert.assertEquals("1.1.0", dp2.getVersion().toString());
+
+        b1 = getBundleByName(context, "org.apache.felix.bundlerepository");
+        Assert.assertNotNull(b1);
+
+        b2 = getBundleByName(context, "de.akquinet.gomobile.bundle");
+        Assert.assertNotNull(b2);
+
+        Assert.assertEquals(Bundle.ACTIVE, b2.getState());
+        Assert.assertEquals(Bundle.ACTIVE, b1.getState());
+
+        Assert.assertEquals("2.0.0", b2.getHeaders().get(Constants.BUNDLE_VERSION));
+
+        // The updated bundle was stopped, the unaffected one kept running
+        Assert.assertTrue(collector.wasStopped("de.akquinet.gomobile.bundle"));
+        Assert.assertFalse(collector.wasStopped("org.apache.felix.bundlerepository"));
+        context.removeBundleListener(collector);
+
+        dp2.uninstall();
+
+        b1 = getBundleByName(context, "org.apache.felix.bundlerepository");
+        Assert.assertNull(b1);
+
+        b2 = getBundleByName(context, "de.akquinet.gomobile.bundle");
+        Assert.assertNull(b2);
+    }
+
     public static URL createDPVersion1() throws IOException, CheckingException {
         File bundle = createBundleV1();
         de.akquinet.gomobile.deployment.api.DeploymentPackage dp
@@ -131,6 +185,22 @@ public class NoStopUnaffectedBundleTest extends Helper {
         return dpf.toURI().toURL();
     }
 
+    public static URL createDPBundleUpdate() throws IOException, CheckingException {
+        File bundle = createBundleV2();
+        de.akquinet.gomobile.deployment.api.DeploymentPackage dp
+        	= new de.akquinet.gomobile.deployment.api.DeploymentPackage();
+        dp
+            .addBundle(bundle.toURI().toURL())
+            .addBundle(BUNDLE1)
+            .setSymbolicName("my.dp").setVersion("1.1.0");
+
+        File dpf = new File("target/dp-update/dp-bundle_update.dp");
+
+        dp.build(dpf);
+
+        return dpf.toURI().toURL();
+    }
+
     private class BundleEventCollector implements BundleListener {
 
     	private List<BundleEvent> list = new ArrayList<BundleEvent>();
@@ -5,6 +5,7 @@ import static org.ops4j.pax.exam.CoreOptions.options;
 import static org.ops4j.pax.exam.CoreOptions.systemProperty;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.net.URL;
 
@@ -18,12 +19,14 @@ import org.ops4j.pax.exam.junit.Configuration;
 import org.ops4j.pax.exam.junit.JUnit4TestRunner;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.cm.ConfigurationAdmin;
 import org.osgi.service.deploymentadmin.DeploymentAdmin;
 import org.osgi.service.deploymentadmin.DeploymentException;
 import org.osgi.service.deploymentadmin.DeploymentPackage;
+import org.osgi.util.tracker.ServiceTracker;
 
 import de.akquinet.gomobile.deployment.api.BundleResource;
 import de.akquinet.gomobile.deployment.api.CheckingException;
@@ -40,6 +43,7 @@ public class SharedOwnershipTest extends Helper {
 
         String dp1 = createDPWithABundle().toExternalForm();
         String dp2 = createDPWithTheSameBundle().toExternalForm();
+        String broken = createBrokenDPWithTheSameBundle().toExternalForm();
 
 
            Option[] opt =  options(
@@ -47,6 +51,7 @@ public class SharedOwnershipTest extends Helper {
                    systemProperty( "org.osgi.framework.storage.clean" ).value( "onFirstInit" ),
                    systemProperty("dp1").value(dp1),
                    systemProperty("dp2").value(dp2),
+                   systemProperty("broken").value(broken),
                    systemProperty("de.akquinet.gomobile.deployment.sharedOwnership").value("true"),
                    Helper.getDPBundles()
                    );
@@ -104,6 +109,92 @@ public class SharedOwnershipTest extends Helper {
 
     }
 
+    @Test
+    public void checkOwnershipSurvivesRestart() throws DeploymentException, IOException, BundleException, InterruptedException {
+        DeploymentAdmin admin = (DeploymentAdmin) context.getService(context.getServiceReference(DeploymentAdmin.class.getName()));
+        Assert.assertNotNull(admin);
+
+        URL d = new URL((String)context.getProperty("dp1"));
+        admin.installDeploymentPackage(d.openStream());
+
+        URL d1 = new URL((String)context.getProperty("dp2"));
+        admin.installDeploymentPackage(d1.openStream());
+
+        Bundle b1 = getBundleByName(context, "org.apache.felix.log");
+        Assert.assertNotNull(b1);
+
+        Bundle b2 = getBundleByName(context, "org.apache.felix.bundlerepository");
+        Assert.assertNotNull(b2);
+
+        // Restart the deployment admin, the ownership has to be read from disk
+        Bundle impl = getBundleByName(context, "de.akquinet.gomobile.deploymentadmin");
+        Assert.assertNotNull(impl);
+        impl.stop();
+        impl.start();
+        admin = waitForDeploymentAdmin();
+        Assert.assertNotNull(admin);
+
+        DeploymentPackage dp = admin.getDeploymentPackage("my.first.dp");
+        Assert.assertNotNull(dp);
+        dp.uninstall();
+
+        // Bundle Repository still owned by the second package
+        b2 = getBundleByName(context, "org.apache.felix.bundlerepository");
+        Assert.assertNotNull(b2);
+
+        DeploymentPackage dp2 = admin.getDeploymentPackage("my.first2.dp");
+        Assert.assertNotNull(dp2);
+        dp2.uninstall();
+
+        b1 = getBundleByName(context, "org.apache.felix.log");
+        Assert.assertNull(b1);
+
+        b2 = getBundleByName(context, "org.apache.felix.bundlerepository");
+        Assert.assertNull(b2);
+    }
+
+    @Test
+    public void checkOwnershipRemovedOnRollback() throws DeploymentException, IOException {
+        DeploymentAdmin admin = (DeploymentAdmin) context.getService(context.getServiceReference(DeploymentAdmin.class.getName()));
+        Assert.assertNotNull(admin);
+
+        URL d = new URL((String)context.getProperty("dp1"));
+        DeploymentPackage dp = admin.installDeploymentPackage(d.openStream());
+
+        Bundle b2 = getBundleByName(context, "org.apache.felix.bundlerepository");
+        Assert.assertNotNull(b2);
+
+        // Shares the bundle, but its resource can not be processed
+        URL d1 = new URL((String)context.getProperty("broken"));
+        try {
+            admin.installDeploymentPackage(d1.openStream());
+            Assert.fail("Broken package installed");
+        } catch (DeploymentException e) {
+            // Ok
+        }
+        Assert.assertNull(admin.getDeploymentPackage("my.broken.dp"));
+
+        b2 = getBundleByName(context, "org.apache.felix.bundlerepository");
+        Assert.assertNotNull(b2);
+        Assert.assertEquals(Bundle.ACTIVE, b2.getState());
+
+        // The rolled back package does not own the bundle
+        dp.uninstall();
+
+        b2 = getBundleByName(context, "org.apache.felix.bundlerepository");
+        Assert.assertNull(b2);
+    }
+
+    private DeploymentAdmin waitForDeploymentAdmin() throws InterruptedException {
+        ServiceTracker tracker = new ServiceTracker(context, DeploymentAdmin.class.getName(), null);
+        tracker.open();
+        try {
+            return (DeploymentAdmin) tracker.waitForService(10000);
+        } finally {
+            tracker.close();
+        }
+    }
+
     public static URL createDPWithABundle() throws IOException, CheckingException {
         de.akquinet.gomobile.deployment.api.DeploymentPackage dp
             = new de.akquinet.gomobile.deployment.api.DeploymentPackage();
@@ -134,6 +225,27 @@ public class SharedOwnershipTest extends Helper {
         return dpf.toURI().toURL();
     }
 
+    public static URL createBrokenDPWithTheSameBundle() throws Exception {
+        File resource = new File("target/dp-ownership/broken.xml");
+        resource.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(resource);
+        writer.write("this is not a metatype document");
+        writer.close();
+
+        de.akquinet.gomobile.deployment.api.DeploymentPackage dp
+        = new de.akquinet.gomobile.deployment.api.DeploymentPackage();
+
+        dp
+        	.addBundle(BUNDLE1, "bundle/b1.jar")
+        	.setSymbolicName("my.broken.dp")
+        	.setVersion("1.0.0")
+        	.addResource(resource.toURI().toURL(), RESOURCE_PROCESSOR);
+
+        File dpf = new File("target/dp-ownership/broken.dp");
 
+        dp.build(dpf);
+
+        return dpf.toURI().toURL();
+    }
 
 }
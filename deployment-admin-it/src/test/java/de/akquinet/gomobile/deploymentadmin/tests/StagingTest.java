@@ -0,0 +1,185 @@
+package de.akquinet.gomobile.deploymentadmin.tests;
+
+import static org.ops4j.pax.exam.CoreOptions.felix;
+import static org.ops4j.pax.exam.CoreOptions.options;
+import static org.ops4j.pax.exam.CoreOptions.systemProperty;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.ops4j.pax.exam.Inject;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.Configuration;
+import org.ops4j.pax.exam.junit.JUnit4TestRunner;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.service.deploymentadmin.DeploymentAdmin;
+import org.osgi.service.deploymentadmin.DeploymentException;
+import org.osgi.service.deploymentadmin.DeploymentPackage;
+
+import de.akquinet.gomobile.deployment.api.CheckingException;
+import de.akquinet.gomobile.deploymentadmin.api.StagedDeploymentPackage;
+import de.akquinet.gomobile.deploymentadmin.api.StagingDeploymentAdmin;
+
+
+@RunWith(JUnit4TestRunner.class)
+public class StagingTest extends Helper {
+
+    @Inject
+    private BundleContext context;
+
+    @Configuration
+    public static Option[] configure() throws Exception {
+
+        String orig = createDPVersion1().toExternalForm();
+        String updatebundle = createDPBundleUpdate().toExternalForm();
+
+
+           Option[] opt =  options(
+                   felix(),
+                   systemProperty( "org.osgi.framework.storage.clean" ).value( "onFirstInit" ),
+                   systemProperty("dpv1").value(orig),
+                   systemProperty("dpv2").value(updatebundle),
+                   Helper.getDPBundles()
+                   );
+           return opt;
+       }
+
+
+    @Test
+    public void stageAndActivate() throws DeploymentException, IOException {
+        StagingDeploymentAdmin admin = (StagingDeploymentAdmin) context.getService(context.getServiceReference(StagingDeploymentAdmin.class.getName()));
+        Assert.assertNotNull(admin);
+
+        URL d = new URL((String)context.getProperty("dpv1"));
+        StagedDeploymentPackage staged = admin.stageDeploymentPackage(d.openStream());
+        Assert.assertEquals("my.dp", staged.getName());
+        Assert.assertEquals("1.0.0", staged.getVersion().toString());
+        Assert.assertEquals(1, admin.listStagedDeploymentPackages().length);
+
+        // Staging does not install anything
+        Bundle b1 = getBundleByName(context, "org.apache.felix.bundlerepository");
+        Assert.assertNull(b1);
+
+        Bundle b2 = getBundleByName(context, "de.akquinet.gomobile.bundle");
+        Assert.assertNull(b2);
+
+        DeploymentPackage dp = admin.activate(staged);
+        Assert.assertEquals("1.0.0", dp.getVersion().toString());
+        Assert.assertEquals(0, admin.listStagedDeploymentPackages().length);
+
+        b1 = getBundleByName(context, "org.apache.felix.bundlerepository");
+        Assert.assertNotNull(b1);
+
+        b2 = getBundleByName(context, "de.akquinet.gomobile.bundle");
+        Assert.assertNotNull(b2);
+
+        Assert.assertEquals(Bundle.ACTIVE, b2.getState());
+        Assert.assertEquals(Bundle.ACTIVE, b1.getState());
+
+        Assert.assertEquals("1.0.0", b2.getHeaders().get(Constants.BUNDLE_VERSION));
+
+        // Activated packages are no longer staged
+        try {
+            admin.activate(staged);
+            Assert.fail("Package activated twice");
+        } catch (DeploymentException e) {
+            // Ok
+        }
+
+        dp.uninstall();
+
+        b1 = getBundleByName(context, "org.apache.felix.bundlerepository");
+        Assert.assertNull(b1);
+
+        b2 = getBundleByName(context, "de.akquinet.gomobile.bundle");
+        Assert.assertNull(b2);
+    }
+
+    @Test
+    public void stageAndDiscard() throws DeploymentException, IOException {
+        DeploymentAdmin admin = (DeploymentAdmin) context.getService(context.getServiceReference(DeploymentAdmin.class.getName()));
+        Assert.assertNotNull(admin);
+
+        StagingDeploymentAdmin staging = (StagingDeploymentAdmin) context.getService(context.getServiceReference(StagingDeploymentAdmin.class.getName()));
+        Assert.assertNotNull(staging);
+
+        URL d = new URL((String)context.getProperty("dpv1"));
+        DeploymentPackage dp = admin.installDeploymentPackage(d.openStream());
+        Assert.assertEquals("1.0.0", dp.getVersion().toString());
+
+        Bundle b2 = getBundleByName(context, "de.akquinet.gomobile.bundle");
+        Assert.assertNotNull(b2);
+        Assert.assertEquals(Bundle.ACTIVE, b2.getState());
+
+        URL d2 = new URL((String)context.getProperty("dpv2"));
+        StagedDeploymentPackage staged = staging.stageDeploymentPackage(d2.openStream());
+        Assert.assertEquals("1.1.0", staged.getVersion().toString());
+        Assert.assertEquals(1, staging.listStagedDeploymentPackages().length);
+
+        // Staging does not touch the installed package
+        b2 = getBundleByName(context, "de.akquinet.gomobile.bundle");
+        Assert.assertEquals(Bundle.ACTIVE, b2.getState());
+        Assert.assertEquals("1.0.0", b2.getHeaders().get(Constants.BUNDLE_VERSION));
+        Assert.assertEquals("1.0.0", admin.getDeploymentPackage("my.dp").getVersion().toString());
+
+        staging.discard(staged);
+        Assert.assertEquals(0, staging.listStagedDeploymentPackages().length);
+
+        // Discarded packages can not be activated
+        try {
+            staging.activate(staged);
+            Assert.fail("Discarded package activated");
+        } catch (DeploymentException e) {
+            // Ok
+        }
+
+        b2 = getBundleByName(context, "de.akquinet.gomobile.bundle");
+        Assert.assertEquals(Bundle.ACTIVE, b2.getState());
+        Assert.assertEquals("1.0.0", b2.getHeaders().get(Constants.BUNDLE_VERSION));
+
+        dp.uninstall();
+
+        b2 = getBundleByName(context, "de.akquinet.gomobile.bundle");
+        Assert.assertNull(b2);
+    }
+
+    public static URL createDPVersion1() throws IOException, CheckingException {
+        File bundle = createBundleV1();
+        de.akquinet.gomobile.deployment.api.DeploymentPackage dp
+        	= new de.akquinet.gomobile.deployment.api.DeploymentPackage();
+        dp
+            .addBundle(bundle.toURI().toURL())
+            .addBundle(BUNDLE1)
+            .setSymbolicName("my.dp").setVersion("1.0.0");
+
+        File dpf = new File("target/dp-staging/dp-v1.dp");
+
+        dp.build(dpf);
+
+        return dpf.toURI().toURL();
+    }
+
+    public static URL createDPBundleUpdate() throws IOException, CheckingException {
+        File bundle = createBundleV2();
+        de.akquinet.gomobile.deployment.api.DeploymentPackage dp
+        	= new de.akquinet.gomobile.deployment.api.DeploymentPackage();
+        dp
+            .addBundle(bundle.toURI().toURL())
+            .addBundle(BUNDLE1)
+            .setSymbolicName("my.dp").setVersion("1.1.0");
+
+        File dpf = new File("target/dp-staging/dp-bundle_update.dp");
+
+        dp.build(dpf);
+
+        return dpf.toURI().toURL();
+    }
+
+}
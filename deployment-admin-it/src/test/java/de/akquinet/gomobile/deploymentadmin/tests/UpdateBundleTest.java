@@ -7,6 +7,8 @@ import static org.ops4j.pax.exam.CoreOptions.systemProperty;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
 import junit.framework.Assert;
 
@@ -18,6 +20,8 @@ import org.ops4j.pax.exam.junit.Configuration;
 import org.ops4j.pax.exam.junit.JUnit4TestRunner;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
 import org.osgi.framework.Constants;
 import org.osgi.service.deploymentadmin.DeploymentAdmin;
 import org.osgi.service.deploymentadmin.DeploymentException;
@@ -41,6 +45,7 @@ public class UpdateBundleTest extends Helper {
         String addbundle = createDPAddBundle().toExternalForm();
         String rembundle = createDPRemoveBundle().toExternalForm();
         String missingbundle = createDPMissingBundle().toExternalForm();
+        String rebuiltbundle = createDPRebuiltBundle().toExternalForm();
 
 
            Option[] opt =  options(
@@ -51,6 +56,7 @@ public class UpdateBundleTest extends Helper {
                    systemProperty("add").value(addbundle),
                    systemProperty("rem").value(rembundle),
                    systemProperty("missing").value(missingbundle),
+                   systemProperty("rebuilt").value(rebuiltbundle),
                    Helper.getDPBundles()
                    );
            return opt;
@@ -192,6 +198,64 @@ public class UpdateBundleTest extends Helper {
         Assert.assertNull(b2);
     }
 
+    @Test
+    public void updateWithTheSameVersionAndChangedContent() throws DeploymentException, IOException {
+        DeploymentAdmin admin = (DeploymentAdmin) context.getService(context.getServiceReference(DeploymentAdmin.class.getName()));
+        Assert.assertNotNull(admin);
+
+        URL d = new URL((String)context.getProperty("dpv1"));
+        DeploymentPackage dp = admin.installDeploymentPackage(d.openStream());
+        Assert.assertEquals("1.0.0", dp.getVersion().toString());
+
+        // Check installed bundle
+        Bundle b1 = getBundleByName(context, "org.apache.felix.bundlerepository");
+        Assert.assertNotNull(b1);
+
+        Bundle b2 = getBundleByName(context, "de.akquinet.gomobile.bundle");
+        Assert.assertNotNull(b2);
+
+        Assert.assertEquals(Bundle.ACTIVE, b2.getState());
+        Assert.assertEquals(Bundle.ACTIVE, b1.getState());
+
+        Assert.assertEquals("1.0.0", b2.getHeaders().get(Constants.BUNDLE_VERSION));
+        Assert.assertNull(b2.getHeaders().get(Constants.BUNDLE_DESCRIPTION));
+        long id = b2.getBundleId();
+
+        BundleEventCollector collector = new BundleEventCollector();
+        context.addBundleListener(collector);
+
+        // same version, different content
+        URL d2 = new URL((String)context.getProperty("rebuilt"));
+        DeploymentPackage dp2 = admin.installDeploymentPackage(d2.openStream());
+        Assert.assertEquals("1.1.0", dp2.getVersion().toString());
+
+        b1 = getBundleByName(context, "org.apache.felix.bundlerepository");
+        Assert.assertNotNull(b1);
+
+        b2 = getBundleByName(context, "de.akquinet.gomobile.bundle");
+        Assert.assertNotNull(b2);
+
+        Assert.assertEquals(Bundle.ACTIVE, b2.getState());
+        Assert.assertEquals(Bundle.ACTIVE, b1.getState());
+
+        // updated in place
+        Assert.assertEquals(id, b2.getBundleId());
+        Assert.assertEquals("1.0.0", b2.getHeaders().get(Constants.BUNDLE_VERSION));
+        Assert.assertEquals("rebuilt", b2.getHeaders().get(Constants.BUNDLE_DESCRIPTION));
+        Assert.assertTrue(collector.wasUpdated("de.akquinet.gomobile.bundle"));
+
+        // unchanged content, not updated
+        Assert.assertFalse(collector.wasUpdated("org.apache.felix.bundlerepository"));
+        context.removeBundleListener(collector);
+
+        dp2.uninstall();
+
+        b1 = getBundleByName(context, "org.apache.felix.bundlerepository");
+        Assert.assertNull(b1);
+
+        b2 = getBundleByName(context, "de.akquinet.gomobile.bundle");
+        Assert.assertNull(b2);
+    }
 
     @Test
     public void addBundle() throws DeploymentException, IOException {
@@ -407,6 +471,49 @@ public class UpdateBundleTest extends Helper {
         return dpf.toURI().toURL();
     }
 
+    public static URL createDPRebuiltBundle() throws IOException, CheckingException {
+        File bundle = createBundleV1Rebuilt();
+        de.akquinet.gomobile.deployment.api.DeploymentPackage dp
+        	= new de.akquinet.gomobile.deployment.api.DeploymentPackage();
+        dp
+            .addBundle(bundle.toURI().toURL()) // Same version, other content
+            .addBundle(BUNDLE1)
+            .setSymbolicName("my.dp").setVersion("1.1.0");
+
+        File dpf = new File("target/dp-update/dp-rebuilt_bundle.dp");
+
+        dp.build(dpf);
+
+        return dpf.toURI().toURL();
+    }
+
+    private class BundleEventCollector implements BundleListener {
+
+    	private List<BundleEvent> list = new ArrayList<BundleEvent>();
+
+		public void bundleChanged(BundleEvent event) {
+			synchronized (this) {
+				list.add(event);
+			}
+		}
+
+		public boolean wasUpdated(String bundle) {
+			List<BundleEvent> l = null;
+			synchronized (this) {
+				l = new ArrayList<BundleEvent>(list);
+			}
+
+			for (BundleEvent ev : l) {
+				if (ev.getBundle().getSymbolicName().equals(bundle)  && ev.getType() == BundleEvent.UPDATED) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+    }
+
 
 
 }